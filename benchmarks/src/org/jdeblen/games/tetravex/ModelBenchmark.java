@@ -0,0 +1,180 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Benchmarks for the hot paths of the model: generating puzzles, placing and
+// removing tiles, encoding puzzles, finding hints and matching a board with
+// tile ids (as PuzzleTiles does when a puzzle is restored). See README for
+// how to run them.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelBenchmark {
+	// Moves between checkpoints in placeAndRemoveTiles. The app saves when it
+	// is paused, which clears the journal's unsaved events; without this the
+	// events would pile up over millions of moves.
+	private static final int OPS_PER_CHECKPOINT = 64;
+	
+	@Param({"2", "3", "4", "5", "6", "7", "8", "12", "16"})
+	public int size;
+	
+	@Param({"2", "4", "6", "8", "10"})
+	public int edgeTypes;
+	
+	private Tetravex mPuzzle;
+	private int [] mSquares; // Squares in the order tiles are placed
+	private int [] mTiles; // Solution tiles, in random order
+	private Tetravex mGame; // Half finished
+	private byte [] mGameData;
+	private TileIndex mTileIndex;
+	private int [] mSquareTiles;
+	private int [] mTileSquares;
+	private PuzzleStorage mStorage;
+	private int mNumOps;
+	
+	@Setup
+	public void setUp()
+	{
+		Random randomNumberFactory = new Random(size*100 + edgeTypes);
+		int numSquares = size*size;
+		
+		mPuzzle = new Tetravex(size, edgeTypes);
+		mSquares = new int[numSquares];
+		mTiles = new int[numSquares];
+		for (int i=0; i<numSquares; i++)
+		{
+			mSquares[i] = i;
+			mTiles[i] = mPuzzle.getSolutionTileCode(i / size, i % size);
+		}
+		shuffle(mSquares, randomNumberFactory);
+		shuffle(mTiles, randomNumberFactory);
+		
+		// A half finished game, for encoding and matching
+		mGame = Tetravex.fromBytes(mPuzzle.toBytes());
+		for (int i=0; i<numSquares/2; i++)
+		{
+			int x = mSquares[i] / size;
+			int y = mSquares[i] % size;
+			mGame.placeTileCode(mGame.getSolutionTileCode(x, y), x, y);
+		}
+		mGameData = mGame.toBytes();
+		
+		mTileIndex = new TileIndex(mTiles);
+		mSquareTiles = new int[numSquares];
+		mTileSquares = new int[numSquares];
+		mStorage = new MemoryPuzzleStorage();
+	}
+	
+	private static void shuffle(int [] values, Random randomNumberFactory)
+	{
+		for (int i=values.length-1; i > 0; i--)
+		{
+			int j = randomNumberFactory.nextInt(i+1);
+			int value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+	}
+	
+	@Benchmark
+	public Tetravex newPuzzle()
+	{
+		return new Tetravex(size, edgeTypes);
+	}
+	
+	// Fill the board in random order and then empty it again. Every
+	// placement is checked against the tile's neighbors.
+	@Benchmark
+	public int placeAndRemoveTiles()
+	{
+		int result = 0;
+		
+		for (int i=0; i<mSquares.length; i++)
+		{
+			int x = mSquares[i] / size;
+			int y = mSquares[i] % size;
+			result += mPuzzle.placeTileCode(mPuzzle.getSolutionTileCode(x, y), x, y);
+		}
+		
+		for (int i=0; i<mSquares.length; i++)
+		{
+			result += mPuzzle.removeTile(mSquares[i] / size, mSquares[i] % size);
+		}
+		
+		if (++mNumOps == OPS_PER_CHECKPOINT)
+		{
+			mNumOps = 0;
+			mPuzzle.savePuzzle("moves", mStorage);
+		}
+		
+		return result;
+	}
+	
+	@Benchmark
+	public byte [] toBytes()
+	{
+		return mGame.toBytes();
+	}
+	
+	@Benchmark
+	public Tetravex fromBytes()
+	{
+		return Tetravex.fromBytes(mGameData);
+	}
+	
+	// The hint engine is built on the first call, so this measures finding a
+	// hint on a board it already tracks
+	@Benchmark
+	public int findHint()
+	{
+		return mGame.findHint();
+	}
+	
+	@Benchmark
+	public TileIndex buildTileIndex()
+	{
+		return new TileIndex(mTiles);
+	}
+	
+	@Benchmark
+	public int [] matchBoard()
+	{
+		mTileIndex.matchBoard(mGame, mSquareTiles, mTileSquares);
+		return mTileSquares;
+	}
+}
@@ -0,0 +1,100 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Benchmark for TetravexParallelSolver's scaling with the number of threads.
+// Boards with few edge values have a huge number of solutions, so searching
+// them all takes far too long; each search stops after SOLUTIONS of them
+// instead. Threads race for the last ones, so the nodes searched vary a
+// little between runs. serialSolver is the single threaded TetravexSolver,
+// for the overhead of splitting the search (it does not depend on threads,
+// so run it with -p threads=1). Puzzles are generated from a fixed seed, so
+// every run solves the same boards.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelSolverBenchmark {
+	private static final int SOLUTIONS = 10000;
+	
+	@Param({"7", "8"})
+	public int size;
+	
+	@Param({"2", "3"})
+	public int edgeTypes;
+	
+	@Param({"1", "2", "4", "8"})
+	public int threads;
+	
+	private Tetravex mPuzzle;
+	
+	@Setup
+	public void setUp()
+	{
+		// A random solution, with matching edges between neighbors
+		Random randomNumberFactory = new Random(size*100 + edgeTypes);
+		int [] bottoms = new int[size*size];
+		int [] rights = new int[size*size];
+		int [] solution = new int[size*size];
+		for (int x=0; x<size; x++)
+		{
+			for (int y=0; y<size; y++)
+			{
+				int square = x*size + y;
+				int top = (y > 0) ? bottoms[square - 1] : randomNumberFactory.nextInt(edgeTypes);
+				int left = (x > 0) ? rights[square - size] : randomNumberFactory.nextInt(edgeTypes);
+				rights[square] = randomNumberFactory.nextInt(edgeTypes);
+				bottoms[square] = randomNumberFactory.nextInt(edgeTypes);
+				solution[square] = TileCode.make(top, left, rights[square], bottoms[square]);
+			}
+		}
+		
+		mPuzzle = Tetravex.fromSolution(size, edgeTypes, solution, false);
+	}
+	
+	@Benchmark
+	public int parallelSolver()
+	{
+		return new TetravexParallelSolver(mPuzzle, threads).countSolutions(SOLUTIONS, 0);
+	}
+	
+	@Benchmark
+	public int serialSolver()
+	{
+		return new TetravexSolver(mPuzzle).countSolutions(SOLUTIONS, 0);
+	}
+}
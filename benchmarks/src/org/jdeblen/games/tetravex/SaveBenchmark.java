@@ -0,0 +1,126 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Benchmarks for saving and restoring puzzles, either in memory (encoding
+// only) or in a temporary directory (including fsync and rename, as on the
+// device). The restored puzzle has a journal of moves made after its last
+// checkpoint, as after the app was paused a few times.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SaveBenchmark {
+	private static final String SAVED_PUZZLE = "saved";
+	private static final String RESTORED_PUZZLE = "restored";
+	
+	// Moves made between the checkpoint and the journal's save
+	private static final int JOURNAL_MOVES = 32;
+	
+	@Param({"2", "4", "6", "8", "16"})
+	public int size;
+	
+	@Param({"2", "6", "10"})
+	public int edgeTypes;
+	
+	@Param({"memory", "file"})
+	public String storage;
+	
+	private File mDirectory;
+	private PuzzleStorage mStorage;
+	private Tetravex mPuzzle;
+	
+	@Setup
+	public void setUp() throws IOException
+	{
+		if (storage.equals("file"))
+		{
+			mDirectory = File.createTempFile("tetravex", "");
+			if (!mDirectory.delete() || !mDirectory.mkdir()) throw new IOException("Cannot create " + mDirectory);
+			mStorage = new FilePuzzleStorage(mDirectory);
+		}
+		else mStorage = new MemoryPuzzleStorage();
+		
+		// A half finished game for saving
+		mPuzzle = new Tetravex(size, edgeTypes);
+		for (int i=0; i<size*size/2; i++)
+		{
+			mPuzzle.placeTileCode(mPuzzle.getSolutionTileCode(i / size, i % size), i / size, i % size);
+		}
+		
+		// And one for restoring, with moves since its checkpoint
+		Tetravex puzzle = Tetravex.fromBytes(mPuzzle.toBytes());
+		puzzle.savePuzzle(RESTORED_PUZZLE, mStorage);
+		for (int i=0; i<JOURNAL_MOVES; i++)
+		{
+			int square = size*size/2 + (i/2) % (size*size - size*size/2);
+			int x = square / size;
+			int y = square % size;
+			if (i % 2 == 0) puzzle.placeTileCode(puzzle.getSolutionTileCode(x, y), x, y);
+			else puzzle.removeTile(x, y);
+		}
+		puzzle.savePuzzleAsync(RESTORED_PUZZLE, mStorage);
+		PuzzleSaver.waitForSaves();
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		if (mDirectory == null) return;
+		
+		File [] files = mDirectory.listFiles();
+		if (files != null)
+		{
+			for (File file : files) file.delete();
+		}
+		mDirectory.delete();
+	}
+	
+	@Benchmark
+	public boolean savePuzzle()
+	{
+		return mPuzzle.savePuzzle(SAVED_PUZZLE, mStorage);
+	}
+	
+	@Benchmark
+	public Tetravex restorePuzzle()
+	{
+		return Tetravex.restorePuzzle(RESTORED_PUZZLE, mStorage);
+	}
+}
@@ -0,0 +1,60 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Benchmark for generating puzzles with a unique solution, as the puzzle
+// pool does. Larger puzzles often run out of time before the solution is
+// unique, so they would mostly measure the time budget; see ModelBenchmark
+// for generating puzzles of all sizes without the uniqueness check.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UniquePuzzleBenchmark {
+	// Same as the puzzle pool's
+	private static final long TIME_BUDGET_MILLIS = 2000;
+	
+	@Param({"2", "3", "4", "5"})
+	public int size;
+	
+	@Param({"2", "4", "6", "8", "10"})
+	public int edgeTypes;
+	
+	@Benchmark
+	public Tetravex newUniquePuzzle()
+	{
+		return new Tetravex(size, edgeTypes, TIME_BUDGET_MILLIS);
+	}
+}
@@ -0,0 +1,254 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+// Checks in the background whether a board can still be completed, so that
+// players can be warned about a wrong tile as soon as it is placed rather
+// than many moves later. Each check is a search with TetravexSolver, with a
+// time budget. If the budget runs out, the board is assumed to be fine.
+//
+// Results are kept in a transposition table keyed by a Zobrist hash of the
+// board: the XOR of a pseudo-random key for each (square, tile) pair on it.
+// The remaining tiles are the puzzle's tiles minus those on the board, so
+// the board's hash covers them too. The hash of a board that differs by one
+// tile is one XOR away, so boards seen before, e.g. after an undo, are
+// answered from the table without searching. The same goes for a board one
+// tile past a known dead end, which is a dead end too.
+//
+// A new check cancels the one in progress, if any. Results are reported to
+// a listener on the checker's thread, and only for the latest board. A
+// search that runs out of time is reported as not a dead end, as far as is
+// known. Boards larger than MAX_SIZE are not checked, as searches on them
+// seldom finish in time.
+final class DeadEndChecker {
+	private static final String TAG = "DeadEndChecker";
+	
+	// Time allowed for each check, per square of the board, so about a
+	// second for the largest boards checked. Most boards are settled in far
+	// less.
+	private static final long TIME_BUDGET_MILLIS_PER_SQUARE = 16;
+	private static final int MAX_SIZE = 8;
+	
+	// Transposition table entries (a power of two). Entries are replaced when
+	// another board hashes to the same slot.
+	private static final int TABLE_SIZE = 4096;
+	private static final byte UNKNOWN = 0;
+	private static final byte SOLVABLE = 1;
+	private static final byte DEAD_END = 2;
+	
+	public interface Listener
+	{
+		// Called on the checker's thread when a check finishes. checkNumber
+		// is the one check returned, for isLatestCheck.
+		void onBoardChecked(int checkNumber, boolean deadEnd);
+	}
+	
+	// Checks run one at a time, on a shared low priority thread
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r)
+		{
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, TAG);
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	private final int mSize;
+	private final int mMaxValue;
+	private final Tetravex.Tile [] mTiles;
+	private final long mSeed; // For the Zobrist keys
+	
+	// Guarded by this
+	private final long [] mTableHashes = new long[TABLE_SIZE];
+	private final byte [] mTableResults = new byte[TABLE_SIZE];
+	
+	// Only the latest check is reported. Check numbers are unique across
+	// checkers, and 0 is never used. The cancel flag belongs to the latest
+	// search, and is only used on the calling thread.
+	private static final AtomicInteger checkNumbers = new AtomicInteger();
+	private volatile int mLatestCheck = 0;
+	private AtomicBoolean mCancelFlag = new AtomicBoolean();
+	
+	// Create a checker for the given puzzle's tiles
+	public DeadEndChecker(Tetravex puzzle)
+	{
+		mSize = puzzle.getSize();
+		mMaxValue = puzzle.getMaxValue();
+		mTiles = new Tetravex.Tile[mSize*mSize];
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++)
+			{
+				mTiles[x*mSize + y] = puzzle.getSolutionTile(x, y);
+			}
+		}
+		
+		mSeed = System.nanoTime();
+	}
+	
+	// Zobrist key of a tile on a square. Keys are computed rather than kept
+	// in a table, by mixing the square, tile code and seed (the splitmix64
+	// finalizer).
+	private long getKey(int square, int code)
+	{
+		long key = mSeed ^ (((long) square << 32) | (code & 0xffffffffL));
+		key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+		key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+		return key ^ (key >>> 31);
+	}
+	
+	// Hash of a board, as TileCodes by square
+	private long hashBoard(int [] board)
+	{
+		long hash = 0;
+		for (int square=0; square<board.length; square++)
+		{
+			if (board[square] != TileCode.EMPTY) hash ^= getKey(square, board[square]);
+		}
+		return hash;
+	}
+	
+	// Check the puzzle's current board. lastSquare is the square of the last
+	// tile placed (x*size + y), or -1. Results already known are reported
+	// without a search, but still on the checker's thread. Returns the
+	// check's number, or 0 if the board is too large to check.
+	public int check(Tetravex puzzle, int lastSquare, final Listener listener)
+	{
+		if (mSize > MAX_SIZE) return 0;
+		
+		final int [] board = new int[mSize*mSize];
+		for (int square=0; square<board.length; square++)
+		{
+			board[square] = puzzle.getBoardTileCode(square / mSize, square % mSize);
+		}
+		
+		final long hash = hashBoard(board);
+		final int checkNumber = checkNumbers.incrementAndGet();
+		mLatestCheck = checkNumber;
+		
+		byte result = lookUp(hash);
+		if (result == UNKNOWN && lastSquare != -1 && board[lastSquare] != TileCode.EMPTY &&
+				lookUp(hash ^ getKey(lastSquare, board[lastSquare])) == DEAD_END)
+		{
+			// Placing a tile cannot get out of a dead end
+			result = DEAD_END;
+			store(hash, result);
+		}
+		
+		// Stop the previous check, which is for an older board
+		mCancelFlag.set(true);
+		final AtomicBoolean cancelFlag = new AtomicBoolean();
+		mCancelFlag = cancelFlag;
+		
+		if (result != UNKNOWN)
+		{
+			final boolean deadEnd = (result == DEAD_END);
+			executor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					if (isLatestCheck(checkNumber)) listener.onBoardChecked(checkNumber, deadEnd);
+				}
+			});
+			return checkNumber;
+		}
+		
+		executor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				if (cancelFlag.get()) return;
+				
+				// Out of time (or cancelled, in which case this is not the
+				// latest check any more)
+				byte result = search(board, cancelFlag);
+				if (result != UNKNOWN) store(hash, result);
+				if (isLatestCheck(checkNumber)) listener.onBoardChecked(checkNumber, result == DEAD_END);
+			}
+		});
+		return checkNumber;
+	}
+	
+	// Whether the given check is for the latest board, and not cancelled.
+	// Results may be out of date by the time they reach another thread, so
+	// check again there.
+	public boolean isLatestCheck(int checkNumber)
+	{
+		return checkNumber == mLatestCheck;
+	}
+	
+	// Stop any check in progress, e.g. when the puzzle is put away
+	public void cancel()
+	{
+		mCancelFlag.set(true);
+		mLatestCheck = 0;
+	}
+	
+	// Search for a way to complete the board. Runs on the checker's thread.
+	private byte search(int [] board, AtomicBoolean cancelFlag)
+	{
+		TetravexSolver solver = new TetravexSolver(mSize, mMaxValue, mTiles);
+		solver.setCancelFlag(cancelFlag);
+		for (int square=0; square<board.length; square++)
+		{
+			if (board[square] == TileCode.EMPTY) continue;
+			
+			// A tile the puzzle does not have (or one too many copies of it)
+			if (!solver.setBoardTile(TileCode.toTile(board[square]), square / mSize, square % mSize))
+				return DEAD_END;
+		}
+		
+		long timeBudgetMillis = TIME_BUDGET_MILLIS_PER_SQUARE*board.length;
+		int result = solver.countSolutions(1, System.nanoTime() + timeBudgetMillis*1000000);
+		if (result == TetravexSolver.NO_SOLUTION) return DEAD_END;
+		else if (result > 0) return SOLVABLE;
+		else return UNKNOWN;
+	}
+	
+	private synchronized byte lookUp(long hash)
+	{
+		int slot = (int) hash & (TABLE_SIZE - 1);
+		if (mTableHashes[slot] == hash) return mTableResults[slot];
+		else return UNKNOWN;
+	}
+	
+	private synchronized void store(long hash, byte result)
+	{
+		int slot = (int) hash & (TABLE_SIZE - 1);
+		mTableHashes[slot] = hash;
+		mTableResults[slot] = result;
+	}
+}
@@ -0,0 +1,224 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+// Rates how hard a puzzle is, by how much deduction and guessing it takes
+// to solve. The rating comes from two measurements:
+// 1) A simulated player, who places forced tiles (see HintEngine) for as
+//    long as there are any, and otherwise guesses: picks the empty square
+//    next to the placed tiles with the fewest candidates, and places the
+//    solution's tile there. Each guess costs log2(candidates) bits, as the
+//    player may have to try them all. Runs of forced moves between guesses
+//    are counted as deduction rounds.
+// 2) The number of nodes TetravexSolver visits to find a solution, which
+//    measures how much dead ends the tiles allow.
+// The rating is the sum of the guess bits and log2 of the node count, so
+// both are in bits of search. Ratings are only comparable between puzzles
+// of the same size and number of edge values: more edge values make for
+// far fewer candidates, so puzzles with many of them rate much lower.
+//
+// The player simulation takes well under a millisecond, and the solver is
+// stopped at a deadline, so many candidates can be rated per second.
+final class DifficultyRater {
+	// Difficulty levels for generating puzzles (see
+	// Tetravex.startNewRatedPuzzle)
+	public static final int ANY = 0;
+	public static final int EASY = 1;
+	public static final int MEDIUM = 2;
+	public static final int HARD = 3;
+	
+	private final Tetravex mPuzzle;
+	private final int mSize;
+	
+	// Results of the last rating
+	private double mRating;
+	private double mGuessBits;
+	private int mGuesses;
+	private int mDeductions;
+	private int mDeductionRounds;
+	private long mNodeCount;
+	
+	public DifficultyRater(Tetravex puzzle)
+	{
+		mPuzzle = puzzle;
+		mSize = puzzle.getSize();
+	}
+	
+	// Rate the puzzle, stopping the solver at the deadline (System.nanoTime)
+	public double rate(long deadline)
+	{
+		simulatePlayer();
+		
+		TetravexSolver solver = new TetravexSolver(mSize, mPuzzle.getMaxValue(), getTiles());
+		solver.countSolutions(1, deadline);
+		mNodeCount = solver.getNodeCount();
+		
+		mRating = mGuessBits + log2(1 + mNodeCount);
+		return mRating;
+	}
+	
+	private Tetravex.Tile [] getTiles()
+	{
+		Tetravex.Tile [] tiles = new Tetravex.Tile[mSize*mSize];
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++)
+			{
+				tiles[x*mSize + y] = mPuzzle.getSolutionTile(x, y);
+			}
+		}
+		return tiles;
+	}
+	
+	private void simulatePlayer()
+	{
+		int numSquares = mSize*mSize;
+		int [] solution = new int[numSquares];
+		int [] board = new int[numSquares];
+		for (int square=0; square<numSquares; square++)
+		{
+			solution[square] = mPuzzle.getSolutionTileCode(square / mSize, square % mSize);
+			board[square] = TileCode.EMPTY;
+		}
+		
+		HintEngine engine = new HintEngine(mSize, mPuzzle.getMaxValue(), solution, board);
+		mGuessBits = 0;
+		mGuesses = 0;
+		mDeductions = 0;
+		mDeductionRounds = 0;
+		
+		int numPlaced = 0;
+		boolean deducing = false;
+		while (numPlaced < numSquares)
+		{
+			int square = engine.findForcedMove();
+			int code;
+			if (square != -1)
+			{
+				code = engine.getHintTileCode();
+				mDeductions++;
+				if (!deducing) mDeductionRounds++;
+				deducing = true;
+			}
+			else
+			{
+				square = findGuessSquare(engine, board, numPlaced == 0);
+				if (square == -1)
+				{
+					// Stuck, e.g. a puzzle with several solutions. Count the
+					// rest as guesses.
+					for (int i=0; i<numSquares; i++)
+					{
+						if (board[i] == TileCode.EMPTY) mGuessBits += log2(Math.max(2, engine.getCandidateCount(i)));
+					}
+					return;
+				}
+				
+				code = solution[square];
+				mGuesses++;
+				mGuessBits += log2(engine.getCandidateCount(square));
+				deducing = false;
+			}
+			
+			board[square] = code;
+			engine.place(square, code);
+			numPlaced++;
+		}
+	}
+	
+	// Return the empty square next to the placed tiles with the fewest
+	// candidates (any square on an empty board) where the solution's tile
+	// can go, or -1 if there is none
+	private int findGuessSquare(HintEngine engine, int [] board, boolean emptyBoard)
+	{
+		int bestSquare = -1;
+		int bestCount = Integer.MAX_VALUE;
+		
+		for (int square=0; square<board.length; square++)
+		{
+			if (board[square] != TileCode.EMPTY || (!emptyBoard && !hasPlacedNeighbor(board, square))) continue;
+			
+			int count = engine.getCandidateCount(square);
+			int code = mPuzzle.getSolutionTileCode(square / mSize, square % mSize);
+			if (count < bestCount && count > 0 && engine.isAvailable(code) && fits(board, square, code))
+			{
+				bestSquare = square;
+				bestCount = count;
+			}
+		}
+		
+		return bestSquare;
+	}
+	
+	private boolean hasPlacedNeighbor(int [] board, int square)
+	{
+		int x = square / mSize;
+		int y = square % mSize;
+		return (y > 0 && board[square-1] != TileCode.EMPTY) || (x > 0 && board[square-mSize] != TileCode.EMPTY) ||
+				(x < (mSize-1) && board[square+mSize] != TileCode.EMPTY) || (y < (mSize-1) && board[square+1] != TileCode.EMPTY);
+	}
+	
+	private boolean fits(int [] board, int square, int code)
+	{
+		int x = square / mSize;
+		int y = square % mSize;
+		if (y > 0 && board[square-1] != TileCode.EMPTY && TileCode.top(code) != TileCode.bottom(board[square-1])) return false;
+		if (x > 0 && board[square-mSize] != TileCode.EMPTY && TileCode.left(code) != TileCode.right(board[square-mSize])) return false;
+		if (x < (mSize-1) && board[square+mSize] != TileCode.EMPTY && TileCode.right(code) != TileCode.left(board[square+mSize])) return false;
+		if (y < (mSize-1) && board[square+1] != TileCode.EMPTY && TileCode.bottom(code) != TileCode.top(board[square+1])) return false;
+		return true;
+	}
+	
+	private static double log2(double value)
+	{
+		return Math.log(value) / Math.log(2);
+	}
+	
+	// Getters for the results of the last rating
+	public double getRating()
+	{
+		return mRating;
+	}
+	
+	public double getGuessBits()
+	{
+		return mGuessBits;
+	}
+	
+	public int getGuesses()
+	{
+		return mGuesses;
+	}
+	
+	public int getDeductions()
+	{
+		return mDeductions;
+	}
+	
+	public int getDeductionRounds()
+	{
+		return mDeductionRounds;
+	}
+	
+	public long getNodeCount()
+	{
+		return mNodeCount;
+	}
+}
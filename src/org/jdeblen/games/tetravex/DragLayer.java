@@ -0,0 +1,213 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+// Transparent surface laid over TetravexView, where the tile being dragged
+// is drawn by a render thread of its own. The UI thread then only handles
+// touch events during a drag, and the tile keeps up with the finger even
+// while the UI thread is busy with sounds, saves or redrawing the board.
+//
+// Finger positions are handed over in a single-slot mailbox: the UI thread
+// overwrites the slot with the latest position and wakes the render thread,
+// which takes whatever is there. Positions posted while a frame is being
+// drawn replace each other, so the render thread always draws the newest
+// one and never falls behind. Frames are paced by lockCanvas, which blocks
+// until the display can take another frame (Choreographer needs API 16).
+//
+// The layer does not handle touches itself; they go to the view below.
+public class DragLayer extends SurfaceView implements SurfaceHolder.Callback {
+	private static final String TAG = "DragLayer";
+	
+	// Mailbox value when there is no new position. Positions are two floats
+	// packed into a long, and this is a pair of NaNs, which no real
+	// position is.
+	private static final long EMPTY = -1;
+	private final AtomicLong mMailbox = new AtomicLong(EMPTY);
+	
+	// Tile being dragged and its size, null if there is no drag. Set before
+	// the first position of a drag is posted.
+	private volatile Bitmap mTileBitmap = null;
+	private volatile float mTileWidth;
+	private volatile float mTileHeight;
+	
+	// Time of the touch event behind the latest position, for frame stats
+	private volatile long mEventTimeMillis;
+	private volatile FrameStats mFrameStats = null;
+	
+	private final Paint mBitmapPaint = new Paint();
+	private final RectF mTileRect = new RectF(); // Render thread only
+	private Thread mRenderThread = null;
+	private volatile boolean mRunning = false;
+	
+	public DragLayer(Context context)
+	{
+		super(context);
+		mBitmapPaint.setFilterBitmap(true);
+		
+		// Draw above the window, and let the board show through
+		setZOrderOnTop(true);
+		getHolder().setFormat(PixelFormat.TRANSPARENT);
+		getHolder().addCallback(this);
+	}
+	
+	// True while the render thread can draw, i.e. while the surface exists.
+	// TetravexView draws dragged tiles itself otherwise.
+	public boolean isReady()
+	{
+		return mRunning;
+	}
+	
+	public void setFrameStats(FrameStats frameStats)
+	{
+		mFrameStats = frameStats;
+	}
+	
+	// Start drawing a tile of the given size (in pixels) at the given
+	// position, from the UI thread
+	public void startDrag(Bitmap tileBitmap, float tileWidth, float tileHeight, float x, float y, long eventTimeMillis)
+	{
+		mTileWidth = tileWidth;
+		mTileHeight = tileHeight;
+		mTileBitmap = tileBitmap;
+		moveTo(x, y, eventTimeMillis);
+	}
+	
+	// Post a new position for the dragged tile's upper left corner
+	public void moveTo(float x, float y, long eventTimeMillis)
+	{
+		mEventTimeMillis = eventTimeMillis;
+		mMailbox.set(((long) Float.floatToIntBits(x) << 32) | (Float.floatToIntBits(y) & 0xffffffffL));
+		wakeRenderThread();
+	}
+	
+	// Clear the layer, once the view below draws the tile again
+	public void endDrag()
+	{
+		mTileBitmap = null;
+		mMailbox.set(EMPTY);
+		wakeRenderThread();
+	}
+	
+	private void wakeRenderThread()
+	{
+		Thread renderThread = mRenderThread;
+		if (renderThread != null) LockSupport.unpark(renderThread);
+	}
+	
+	@Override
+	public void surfaceCreated(SurfaceHolder holder)
+	{
+		mRunning = true;
+		mRenderThread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				render();
+			}
+		}, TAG);
+		mRenderThread.start();
+	}
+	
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height)
+	{
+		wakeRenderThread();
+	}
+	
+	// The surface must not be touched once this returns, so wait for the
+	// render thread to finish its frame
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder)
+	{
+		mRunning = false;
+		Thread renderThread = mRenderThread;
+		mRenderThread = null;
+		LockSupport.unpark(renderThread);
+		
+		boolean interrupted = false;
+		while (renderThread.isAlive())
+		{
+			try {
+				renderThread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+	
+	// Body of the render thread: draw each new position, and clear the
+	// layer when a drag ends
+	private void render()
+	{
+		boolean tileShown = true; // Clear whatever is on a new surface
+		
+		while (mRunning)
+		{
+			long position = mMailbox.getAndSet(EMPTY);
+			Bitmap tileBitmap = mTileBitmap;
+			boolean showTile = (tileBitmap != null) && (position != EMPTY);
+			
+			if (!showTile && (tileBitmap != null || !tileShown))
+			{
+				LockSupport.park(this);
+				continue;
+			}
+			
+			long eventTimeMillis = mEventTimeMillis;
+			Canvas canvas = getHolder().lockCanvas();
+			if (canvas == null) continue; // Surface is going away
+			
+			try {
+				canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+				if (showTile)
+				{
+					float x = Float.intBitsToFloat((int) (position >>> 32));
+					float y = Float.intBitsToFloat((int) position);
+					mTileRect.set(x, y, x + mTileWidth, y + mTileHeight);
+					canvas.drawBitmap(tileBitmap, null, mTileRect, mBitmapPaint);
+				}
+			} finally {
+				getHolder().unlockCanvasAndPost(canvas);
+			}
+			
+			tileShown = showTile;
+			FrameStats frameStats = mFrameStats;
+			if (showTile && frameStats != null)
+			{
+				frameStats.touchToDrawTimes.recordMicros((SystemClock.uptimeMillis() - eventTimeMillis) * 1000);
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+// Puzzle storage in a directory, normally the application's files directory
+// (Context.getFilesDir).
+//
+// Files are written atomically: the data goes to a temporary file, which is
+// synced to disk and then renamed over the old file. A crash or full disk
+// partway through leaves the previous contents intact. Appends are synced
+// but not atomic, so readers must cope with a partly written tail.
+final class FilePuzzleStorage implements PuzzleStorage {
+	private static final String TAG = "FilePuzzleStorage";
+	private static final String TEMP_SUFFIX = ".tmp";
+	
+	private final File mDirectory;
+	
+	public FilePuzzleStorage(File directory)
+	{
+		mDirectory = directory;
+	}
+	
+	// Storages for the same directory are equal, so PuzzleSaver can coalesce
+	// their writes
+	@Override
+	public boolean equals(Object o)
+	{
+		return (o instanceof FilePuzzleStorage) && mDirectory.equals(((FilePuzzleStorage) o).mDirectory);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return mDirectory.hashCode();
+	}
+	
+	@Override
+	public byte [] read(String fileName)
+	{
+		FileInputStream fis = null;
+		
+		try {
+			fis = new FileInputStream(new File(mDirectory, fileName));
+			byte [] data = new byte[(int) fis.getChannel().size()];
+			int length = 0;
+			while (length < data.length)
+			{
+				int bytesRead = fis.read(data, length, data.length - length);
+				if (bytesRead < 0) break;
+				length += bytesRead;
+			}
+			
+			if (length < data.length) return null;
+			return data;
+		} catch(FileNotFoundException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				if (fis != null) fis.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	@Override
+	public boolean write(String fileName, byte [] data)
+	{
+		Tracer.saveStarted(data.length, false);
+		boolean saved = writeFile(fileName, data);
+		Tracer.saveFinished(data.length, false, saved);
+		return saved;
+	}
+	
+	@Override
+	public boolean append(String fileName, byte [] data)
+	{
+		Tracer.saveStarted(data.length, true);
+		boolean saved = appendFile(fileName, data);
+		Tracer.saveFinished(data.length, true, saved);
+		return saved;
+	}
+	
+	private boolean writeFile(String fileName, byte [] data)
+	{
+		File file = new File(mDirectory, fileName);
+		File tempFile = new File(mDirectory, fileName + TEMP_SUFFIX);
+		FileOutputStream fos = null;
+		
+		try {
+			fos = new FileOutputStream(tempFile);
+			fos.write(data);
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			
+			if (!tempFile.renameTo(file)) throw new IOException("Cannot rename " + tempFile + " to " + file);
+		} catch (IOException e) {
+			Log.w(TAG, "Saving " + file + " failed", e);
+			tempFile.delete();
+			return false;
+		} finally {
+			try {
+				if (fos != null) fos.close();
+			} catch (IOException e) {}
+		}
+		
+		return true;
+	}
+	
+	private boolean appendFile(String fileName, byte [] data)
+	{
+		File file = new File(mDirectory, fileName);
+		FileOutputStream fos = null;
+		
+		try {
+			fos = new FileOutputStream(file, true);
+			fos.write(data);
+			fos.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			Log.w(TAG, "Appending to " + file + " failed", e);
+			return false;
+		} finally {
+			try {
+				if (fos != null) fos.close();
+			} catch (IOException e) {}
+		}
+		
+		return true;
+	}
+}
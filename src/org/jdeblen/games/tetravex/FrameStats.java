@@ -0,0 +1,89 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+// Rendering measurements for TetravexView, kept while the frame stats
+// overlay is on (see the debug menu):
+// - draw: time spent in onDraw, not counting the overlay itself
+// - touch: time from a drag's MotionEvent to the end of the next onDraw.
+//   Only the oldest event before each draw counts, as that is the one the
+//   user waited longest for. Event times have millisecond resolution.
+// - tiles: time per frame getting tile bitmaps from the controller, in
+//   frames that needed any (tiles coming into view, or a new zoom)
+// The view only calls into this class when it has one, so there is no cost
+// while the overlay is off.
+final class FrameStats {
+	public static final int NUM_HISTOGRAMS = 3;
+	
+	public final LatencyHistogram drawTimes = new LatencyHistogram("draw");
+	public final LatencyHistogram touchToDrawTimes = new LatencyHistogram("touch");
+	public final LatencyHistogram tileBitmapTimes = new LatencyHistogram("tiles");
+	private final LatencyHistogram [] mHistograms = {drawTimes, touchToDrawTimes, tileBitmapTimes};
+	
+	// Uptime (ms) of the oldest touch event not yet drawn, or -1 if none
+	private long mPendingTouchMillis = -1;
+	
+	// Called for each drag event that changes what is drawn
+	public void touchHandled(long eventTimeMillis)
+	{
+		if (mPendingTouchMillis == -1) mPendingTouchMillis = eventTimeMillis;
+	}
+	
+	// Called at the end of each onDraw, with the current uptime
+	public void frameDrawn(long uptimeMillis)
+	{
+		if (mPendingTouchMillis == -1) return;
+		touchToDrawTimes.recordMicros((uptimeMillis - mPendingTouchMillis) * 1000);
+		mPendingTouchMillis = -1;
+	}
+	
+	// One line summary of a histogram (0 to NUM_HISTOGRAMS-1), for the
+	// overlay
+	public String getSummary(int histogramNum)
+	{
+		LatencyHistogram h = mHistograms[histogramNum];
+		return String.format("%-5s n=%d p50=%.1f p95=%.1f p99=%.1f max=%.1f ms", h.getName(), h.getCount(),
+				h.getPercentileMicros(0.50) / 1000.0, h.getPercentileMicros(0.95) / 1000.0,
+				h.getPercentileMicros(0.99) / 1000.0, h.getMaxMicros() / 1000.0);
+	}
+	
+	// Full report for exporting: the summaries, then the non-empty buckets
+	// of each histogram as CSV lines of name, low and high (microseconds) and
+	// count
+	public String getReport()
+	{
+		StringBuilder report = new StringBuilder();
+		for (int i=0; i<mHistograms.length; i++) report.append(getSummary(i)).append('\n');
+		
+		report.append("\nhistogram,low_us,high_us,count\n");
+		for (LatencyHistogram h : mHistograms)
+		{
+			for (int bucket=0; bucket<h.getNumBuckets(); bucket++)
+			{
+				int count = h.getBucketCount(bucket);
+				if (count == 0) continue;
+				report.append(h.getName()).append(',').append(LatencyHistogram.getBucketLow(bucket)).append(',')
+					.append(LatencyHistogram.getBucketHigh(bucket)).append(',').append(count).append('\n');
+			}
+		}
+		
+		return report.toString();
+	}
+}
@@ -0,0 +1,395 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Arrays;
+
+// Keeps track of which tiles could still go on each empty square of a
+// board, to find forced moves for hints: a square that only one tile fits,
+// or a tile that only fits one square.
+//
+// Identical tiles are interchangeable, so tiles are numbered by distinct
+// code (tile ids below), with a count of copies for each. A tile is
+// available while some copy of it is off the board.
+//
+// Sets of tiles and of squares are bitsets (long arrays). For each square,
+// the engine keeps the tiles that match its placed neighbors, and for each
+// tile the empty squares it matches. Placing or removing a tile only
+// changes the square itself, its neighbors and the squares where the tile
+// fits, so updates are incremental. Counts of candidates per square and per
+// tile are kept alongside, and squares and tiles with exactly one candidate
+// are kept in two more bitsets, so a forced move is found by scanning for
+// the first set bit.
+final class HintEngine {
+	private final int mSize;
+	private final int mNumSquares;
+	private final int mNumTiles; // Distinct tiles
+	private final int mTileWords; // Longs per set of tiles
+	private final int mSquareWords; // Longs per set of squares
+	
+	private final TileIndex mTileIndex; // From code to tile id
+	private final int [] mTileCodes; // Code of each tile id
+	private final int [] mCopiesOff; // Copies of each tile off the board, negative if too many are on it
+	
+	// Tiles with each value on each side, at ((side*maxValue) + value)*mTileWords
+	private final int mMaxValue;
+	private final long [] mEdgeTiles;
+	private final long [] mAllTiles;
+	
+	private final int [] mBoard; // TileCodes by square
+	private final int [] mSquareTiles; // Tile id on each square, -1 if empty or not in the puzzle
+	private final long [] mEmptySquares;
+	private final long [] mAvailableTiles;
+	
+	// Tiles that match each square's placed neighbors, whether or not the
+	// square is empty, at square*mTileWords. And the empty squares that each
+	// tile matches, at tile*mSquareWords.
+	private final long [] mSquareFits;
+	private final long [] mTileFits;
+	
+	// Available tiles that fit each empty square, and empty squares that each
+	// tile fits
+	private final int [] mSquareCounts;
+	private final int [] mTileCounts;
+	
+	// Empty squares and available tiles with a count of one
+	private final long [] mForcedSquares;
+	private final long [] mForcedTiles;
+	
+	private final long [] mScratch; // Set of tiles
+	private int mHintTileCode;
+	
+	private static final int TOP = 0;
+	private static final int LEFT = 1;
+	private static final int RIGHT = 2;
+	private static final int BOTTOM = 3;
+	
+	// Create an engine for the given solution and board (TileCodes by square,
+	// as in Tetravex)
+	public HintEngine(int size, int maxValue, int [] solution, int [] board)
+	{
+		mSize = size;
+		mNumSquares = size*size;
+		mMaxValue = maxValue;
+		
+		// Number the distinct tiles, and count their copies
+		TileIndex solutionIndex = new TileIndex(solution);
+		int [] tileCodes = new int[mNumSquares];
+		int numTiles = 0;
+		for (int i=0; i<mNumSquares; i++)
+		{
+			if (solutionIndex.firstTile(solution[i]) == i) tileCodes[numTiles++] = solution[i];
+		}
+		mNumTiles = numTiles;
+		mTileCodes = Arrays.copyOf(tileCodes, numTiles);
+		mTileIndex = new TileIndex(mTileCodes);
+		mCopiesOff = new int[numTiles];
+		for (int i=0; i<mNumSquares; i++) mCopiesOff[mTileIndex.firstTile(solution[i])]++;
+		
+		mTileWords = (numTiles + 63) >>> 6;
+		mSquareWords = (mNumSquares + 63) >>> 6;
+		
+		mEdgeTiles = new long[4*maxValue*mTileWords];
+		mAllTiles = new long[mTileWords];
+		for (int tile=0; tile<numTiles; tile++)
+		{
+			int code = mTileCodes[tile];
+			setBit(mEdgeTiles, edgeOffset(TOP, TileCode.top(code)), tile);
+			setBit(mEdgeTiles, edgeOffset(LEFT, TileCode.left(code)), tile);
+			setBit(mEdgeTiles, edgeOffset(RIGHT, TileCode.right(code)), tile);
+			setBit(mEdgeTiles, edgeOffset(BOTTOM, TileCode.bottom(code)), tile);
+			setBit(mAllTiles, 0, tile);
+		}
+		
+		mBoard = new int[mNumSquares];
+		mSquareTiles = new int[mNumSquares];
+		mEmptySquares = new long[mSquareWords];
+		mAvailableTiles = new long[mTileWords];
+		mSquareFits = new long[mNumSquares*mTileWords];
+		mTileFits = new long[numTiles*mSquareWords];
+		mSquareCounts = new int[mNumSquares];
+		mTileCounts = new int[numTiles];
+		mForcedSquares = new long[mSquareWords];
+		mForcedTiles = new long[mTileWords];
+		mScratch = new long[mTileWords];
+		
+		// Start from an empty board, then place the board's tiles
+		Arrays.fill(mBoard, TileCode.EMPTY);
+		Arrays.fill(mSquareTiles, -1);
+		for (int tile=0; tile<numTiles; tile++) setBit(mAvailableTiles, 0, tile);
+		for (int square=0; square<mNumSquares; square++)
+		{
+			setBit(mEmptySquares, 0, square);
+			System.arraycopy(mAllTiles, 0, mSquareFits, square*mTileWords, mTileWords);
+			mSquareCounts[square] = numTiles;
+		}
+		for (int tile=0; tile<numTiles; tile++)
+		{
+			for (int square=0; square<mNumSquares; square++) setBit(mTileFits, tile*mSquareWords, square);
+			mTileCounts[tile] = mNumSquares;
+		}
+		
+		for (int square=0; square<mNumSquares; square++)
+		{
+			if (board[square] != TileCode.EMPTY) place(square, board[square]);
+		}
+		
+		for (int square=0; square<mNumSquares; square++) updateForcedSquare(square);
+		for (int tile=0; tile<numTiles; tile++) updateForcedTile(tile);
+	}
+	
+	private int edgeOffset(int side, int value)
+	{
+		return (side*mMaxValue + value)*mTileWords;
+	}
+	
+	// Update for a tile placed on an empty square
+	public void place(int square, int code)
+	{
+		int tile = mTileIndex.firstTile(code);
+		mBoard[square] = code;
+		mSquareTiles[square] = tile;
+		
+		// The square is no longer open to any tile
+		clearBit(mEmptySquares, 0, square);
+		updateForcedSquare(square);
+		int offset = square*mTileWords;
+		for (int word=0; word<mTileWords; word++)
+		{
+			for (long bits = mSquareFits[offset + word]; bits != 0; bits &= bits - 1)
+			{
+				int fitTile = (word << 6) + Long.numberOfTrailingZeros(bits);
+				clearBit(mTileFits, fitTile*mSquareWords, square);
+				mTileCounts[fitTile]--;
+				updateForcedTile(fitTile);
+			}
+		}
+		
+		// The tile may have run out of copies
+		if (tile != -1)
+		{
+			mCopiesOff[tile]--;
+			if (mCopiesOff[tile] == 0) setAvailable(tile, false);
+		}
+		
+		updateNeighbors(square);
+	}
+	
+	// Update for a tile removed from a square
+	public void remove(int square)
+	{
+		int tile = mSquareTiles[square];
+		mBoard[square] = TileCode.EMPTY;
+		mSquareTiles[square] = -1;
+		
+		if (tile != -1)
+		{
+			mCopiesOff[tile]++;
+			if (mCopiesOff[tile] == 1) setAvailable(tile, true);
+		}
+		
+		// The square is open again to the tiles that match its neighbors
+		setBit(mEmptySquares, 0, square);
+		int offset = square*mTileWords;
+		int count = 0;
+		for (int word=0; word<mTileWords; word++)
+		{
+			for (long bits = mSquareFits[offset + word]; bits != 0; bits &= bits - 1)
+			{
+				int fitTile = (word << 6) + Long.numberOfTrailingZeros(bits);
+				setBit(mTileFits, fitTile*mSquareWords, square);
+				mTileCounts[fitTile]++;
+				updateForcedTile(fitTile);
+			}
+			count += Long.bitCount(mSquareFits[offset + word] & mAvailableTiles[word]);
+		}
+		mSquareCounts[square] = count;
+		updateForcedSquare(square);
+		
+		updateNeighbors(square);
+	}
+	
+	// Make a tile available or not, updating the counts of the squares it
+	// fits
+	private void setAvailable(int tile, boolean available)
+	{
+		if (available) setBit(mAvailableTiles, 0, tile);
+		else clearBit(mAvailableTiles, 0, tile);
+		
+		int offset = tile*mSquareWords;
+		for (int word=0; word<mSquareWords; word++)
+		{
+			for (long bits = mTileFits[offset + word]; bits != 0; bits &= bits - 1)
+			{
+				int square = (word << 6) + Long.numberOfTrailingZeros(bits);
+				mSquareCounts[square] += available ? 1 : -1;
+				updateForcedSquare(square);
+			}
+		}
+		
+		updateForcedTile(tile);
+	}
+	
+	private void updateNeighbors(int square)
+	{
+		int x = square / mSize;
+		int y = square % mSize;
+		
+		if (y > 0) updateFits(square - 1);
+		if (x > 0) updateFits(square - mSize);
+		if (x < (mSize-1)) updateFits(square + mSize);
+		if (y < (mSize-1)) updateFits(square + 1);
+	}
+	
+	// Recompute the tiles that match a square's placed neighbors, and update
+	// the counts for the tiles that changed
+	private void updateFits(int square)
+	{
+		int x = square / mSize;
+		int y = square % mSize;
+		
+		System.arraycopy(mAllTiles, 0, mScratch, 0, mTileWords);
+		if (y > 0 && mBoard[square-1] != TileCode.EMPTY)
+			intersect(edgeOffset(TOP, TileCode.bottom(mBoard[square-1])));
+		if (x > 0 && mBoard[square-mSize] != TileCode.EMPTY)
+			intersect(edgeOffset(LEFT, TileCode.right(mBoard[square-mSize])));
+		if (x < (mSize-1) && mBoard[square+mSize] != TileCode.EMPTY)
+			intersect(edgeOffset(RIGHT, TileCode.left(mBoard[square+mSize])));
+		if (y < (mSize-1) && mBoard[square+1] != TileCode.EMPTY)
+			intersect(edgeOffset(BOTTOM, TileCode.top(mBoard[square+1])));
+		
+		boolean empty = getBit(mEmptySquares, 0, square);
+		int offset = square*mTileWords;
+		for (int word=0; word<mTileWords; word++)
+		{
+			long oldBits = mSquareFits[offset + word];
+			long newBits = mScratch[word];
+			mSquareFits[offset + word] = newBits;
+			if (!empty) continue;
+			
+			for (long bits = oldBits ^ newBits; bits != 0; bits &= bits - 1)
+			{
+				int bit = Long.numberOfTrailingZeros(bits);
+				int tile = (word << 6) + bit;
+				int change = ((newBits >>> bit) & 1) != 0 ? 1 : -1;
+				
+				if (change > 0) setBit(mTileFits, tile*mSquareWords, square);
+				else clearBit(mTileFits, tile*mSquareWords, square);
+				mTileCounts[tile] += change;
+				updateForcedTile(tile);
+				
+				if (getBit(mAvailableTiles, 0, tile)) mSquareCounts[square] += change;
+			}
+		}
+		
+		updateForcedSquare(square);
+	}
+	
+	private void intersect(int edgeOffset)
+	{
+		for (int word=0; word<mTileWords; word++) mScratch[word] &= mEdgeTiles[edgeOffset + word];
+	}
+	
+	private void updateForcedSquare(int square)
+	{
+		if (getBit(mEmptySquares, 0, square) && mSquareCounts[square] == 1) setBit(mForcedSquares, 0, square);
+		else clearBit(mForcedSquares, 0, square);
+	}
+	
+	private void updateForcedTile(int tile)
+	{
+		if (mCopiesOff[tile] > 0 && mTileCounts[tile] == 1) setBit(mForcedTiles, 0, tile);
+		else clearBit(mForcedTiles, 0, tile);
+	}
+	
+	// Find a forced move. Returns its square, with the tile available from
+	// getHintTileCode, or -1 if there is no forced move.
+	public int findForcedMove()
+	{
+		int square = firstBit(mForcedSquares, 0, mSquareWords);
+		if (square != -1)
+		{
+			// The one available tile that fits
+			int offset = square*mTileWords;
+			for (int word=0; word<mTileWords; word++)
+			{
+				long bits = mSquareFits[offset + word] & mAvailableTiles[word];
+				if (bits != 0)
+				{
+					mHintTileCode = mTileCodes[(word << 6) + Long.numberOfTrailingZeros(bits)];
+					return square;
+				}
+			}
+		}
+		
+		int tile = firstBit(mForcedTiles, 0, mTileWords);
+		if (tile != -1)
+		{
+			mHintTileCode = mTileCodes[tile];
+			return firstBit(mTileFits, tile*mSquareWords, mSquareWords);
+		}
+		
+		return -1;
+	}
+	
+	public int getHintTileCode()
+	{
+		return mHintTileCode;
+	}
+	
+	// Number of available tiles that fit an empty square
+	public int getCandidateCount(int square)
+	{
+		return mSquareCounts[square];
+	}
+	
+	// Whether a copy of a tile is still off the board
+	public boolean isAvailable(int code)
+	{
+		int tile = mTileIndex.firstTile(code);
+		return tile != -1 && mCopiesOff[tile] > 0;
+	}
+	
+	// Bitset helpers, for sets starting at the given offset
+	private static boolean getBit(long [] bitset, int offset, int bit)
+	{
+		return (bitset[offset + (bit >>> 6)] & (1L << bit)) != 0;
+	}
+	
+	private static void setBit(long [] bitset, int offset, int bit)
+	{
+		bitset[offset + (bit >>> 6)] |= 1L << bit;
+	}
+	
+	private static void clearBit(long [] bitset, int offset, int bit)
+	{
+		bitset[offset + (bit >>> 6)] &= ~(1L << bit);
+	}
+	
+	// First set bit in a set of numWords longs, -1 if none
+	private static int firstBit(long [] bitset, int offset, int numWords)
+	{
+		for (int word=0; word<numWords; word++)
+		{
+			if (bitset[offset + word] != 0) return (word << 6) + Long.numberOfTrailingZeros(bitset[offset + word]);
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,156 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fixed-size histogram of durations in microseconds. Durations below
+// LINEAR_LIMIT get a bucket each, and every power of two above that is
+// split into SUB_BUCKETS buckets, so percentiles are accurate to about 6%
+// from a few microseconds up to half an hour, in under 2 KB.
+//
+// Recording only updates atomics, never allocates and never blocks, so it
+// can be called from the UI thread while another thread reads or exports
+// the histogram. A reader may see a sample's count before its sum or
+// maximum, which only matters for a moment.
+final class LatencyHistogram {
+	private static final int LINEAR_LIMIT = 32;
+	private static final int LINEAR_BITS = 5; // log2 of LINEAR_LIMIT
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = LINEAR_LIMIT + (31 - LINEAR_BITS) * SUB_BUCKETS;
+	
+	private final String mName;
+	private final AtomicIntegerArray mCounts = new AtomicIntegerArray(NUM_BUCKETS);
+	private final AtomicLong mTotalCount = new AtomicLong();
+	private final AtomicLong mTotalMicros = new AtomicLong();
+	private final AtomicLong mMaxMicros = new AtomicLong();
+	
+	public LatencyHistogram(String name)
+	{
+		mName = name;
+	}
+	
+	public String getName()
+	{
+		return mName;
+	}
+	
+	public void recordNanos(long nanos)
+	{
+		recordMicros(nanos / 1000);
+	}
+	
+	public void recordMicros(long micros)
+	{
+		if (micros < 0) micros = 0;
+		if (micros > Integer.MAX_VALUE) micros = Integer.MAX_VALUE;
+		
+		mCounts.incrementAndGet(getBucket((int) micros));
+		mTotalCount.incrementAndGet();
+		mTotalMicros.addAndGet(micros);
+		
+		long max = mMaxMicros.get();
+		while (micros > max && !mMaxMicros.compareAndSet(max, micros)) max = mMaxMicros.get();
+	}
+	
+	// Clear all samples. Samples recorded while clearing may be partly kept.
+	public void reset()
+	{
+		for (int i=0; i<NUM_BUCKETS; i++) mCounts.set(i, 0);
+		mTotalCount.set(0);
+		mTotalMicros.set(0);
+		mMaxMicros.set(0);
+	}
+	
+	public long getCount()
+	{
+		return mTotalCount.get();
+	}
+	
+	public long getMaxMicros()
+	{
+		return mMaxMicros.get();
+	}
+	
+	public long getMeanMicros()
+	{
+		long count = mTotalCount.get();
+		return (count == 0) ? 0 : mTotalMicros.get() / count;
+	}
+	
+	// Return the duration below which the given fraction of samples fall
+	// (e.g. 0.99 for p99), as the middle of the bucket it lands in (but no
+	// more than the maximum). Returns 0 if there are no samples.
+	public long getPercentileMicros(double fraction)
+	{
+		long total = 0;
+		for (int i=0; i<NUM_BUCKETS; i++) total += mCounts.get(i);
+		if (total == 0) return 0;
+		
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i=0; i<NUM_BUCKETS; i++)
+		{
+			seen += mCounts.get(i);
+			if (seen >= rank) return Math.min(mMaxMicros.get(), (getBucketLow(i) + getBucketHigh(i)) / 2);
+		}
+		
+		return mMaxMicros.get();
+	}
+	
+	// Bucket contents, for exporting
+	public int getNumBuckets()
+	{
+		return NUM_BUCKETS;
+	}
+	
+	public int getBucketCount(int bucket)
+	{
+		return mCounts.get(bucket);
+	}
+	
+	// Smallest duration in a bucket
+	public static long getBucketLow(int bucket)
+	{
+		if (bucket < LINEAR_LIMIT) return bucket;
+		
+		int exponent = LINEAR_BITS + (bucket - LINEAR_LIMIT) / SUB_BUCKETS;
+		int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+	
+	// Largest duration in a bucket
+	public static long getBucketHigh(int bucket)
+	{
+		if (bucket == NUM_BUCKETS-1) return Integer.MAX_VALUE;
+		else return getBucketLow(bucket + 1) - 1;
+	}
+	
+	private static int getBucket(int micros)
+	{
+		if (micros < LINEAR_LIMIT) return micros;
+		
+		int exponent = 31 - Integer.numberOfLeadingZeros(micros);
+		int subBucket = (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+	}
+}
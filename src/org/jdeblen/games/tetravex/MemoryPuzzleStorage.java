@@ -0,0 +1,57 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Puzzle storage in memory, for tests and for measuring saving and restoring
+// without the cost of the file system
+final class MemoryPuzzleStorage implements PuzzleStorage {
+	private final Map<String, byte []> mFiles = new HashMap<String, byte []>();
+	
+	@Override
+	public byte [] read(String fileName)
+	{
+		byte [] data = mFiles.get(fileName);
+		if (data == null) return null;
+		else return data.clone();
+	}
+	
+	@Override
+	public boolean write(String fileName, byte [] data)
+	{
+		mFiles.put(fileName, data.clone());
+		return true;
+	}
+	
+	@Override
+	public boolean append(String fileName, byte [] data)
+	{
+		byte [] oldData = mFiles.get(fileName);
+		if (oldData == null) return write(fileName, data);
+		
+		byte [] newData = new byte[oldData.length + data.length];
+		System.arraycopy(oldData, 0, newData, 0, oldData.length);
+		System.arraycopy(data, 0, newData, oldData.length, data.length);
+		mFiles.put(fileName, newData);
+		return true;
+	}
+}
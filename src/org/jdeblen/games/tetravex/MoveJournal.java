@@ -0,0 +1,198 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Arrays;
+
+// History of the moves made on a puzzle's board, for undo and redo. Moves
+// are fixed-width records (see makeMove), kept in order with a cursor
+// marking how many of them are currently applied. Undo steps the cursor
+// back, redo steps it forward, and a new move discards any moves that were
+// undone. All three are O(1).
+//
+// Everything that happens to the journal (moves, undos and redos) is also
+// logged as an event, so that it can be saved incrementally: replaying the
+// events in order rebuilds the same journal.
+final class MoveJournal {
+	// Record types. Moves are PLACE and REMOVE records; UNDO and REDO only
+	// appear as events.
+	public static final int PLACE = 0;
+	public static final int REMOVE = 1;
+	public static final int UNDO = 2;
+	public static final int REDO = 3;
+	
+	// Record layout: type in the top two bits, then a flag marking a move
+	// that is undone and redone together with the move before it, then the
+	// square and the tile (as TileCode nibbles)
+	private static final int TYPE_SHIFT = 30;
+	private static final int LINKED_FLAG = 1 << 29;
+	private static final int SQUARE_SHIFT = 16;
+	private static final int SQUARE_MASK = 0x1fff;
+	private static final int TILE_MASK = 0xffff;
+	public static final int MAX_SQUARES = SQUARE_MASK + 1;
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private int [] mMoves = new int[INITIAL_CAPACITY];
+	private int mLength = 0; // Moves recorded, including undone ones
+	private int mPosition = 0; // Moves currently applied
+	
+	private int [] mEvents = new int[INITIAL_CAPACITY]; // Not yet saved
+	private int mNumEvents = 0;
+	private int mLastEvent = -1; // Most recent event, -1 if none
+	
+	public static int makeMove(int type, int square, int code, boolean linked)
+	{
+		return (type << TYPE_SHIFT) | (linked ? LINKED_FLAG : 0) | (square << SQUARE_SHIFT) | TileCode.toNibbles(code);
+	}
+	
+	// Getters for the fields of a record
+	public static int getType(int record)
+	{
+		return record >>> TYPE_SHIFT;
+	}
+	
+	public static boolean isLinked(int record)
+	{
+		return (record & LINKED_FLAG) != 0;
+	}
+	
+	public static int getSquare(int record)
+	{
+		return (record >>> SQUARE_SHIFT) & SQUARE_MASK;
+	}
+	
+	public static int getTileCode(int record)
+	{
+		return TileCode.fromNibbles(record & TILE_MASK);
+	}
+	
+	// Add a new move, discarding any undone moves
+	public void record(int move)
+	{
+		if (mPosition == mMoves.length) mMoves = Arrays.copyOf(mMoves, 2*mMoves.length);
+		mMoves[mPosition++] = move;
+		mLength = mPosition;
+		logEvent(move);
+	}
+	
+	public boolean canUndo()
+	{
+		return mPosition > 0;
+	}
+	
+	public boolean canRedo()
+	{
+		return mPosition < mLength;
+	}
+	
+	// Step back over the last applied move and return it. The caller reverts
+	// it. Check canUndo first.
+	public int undo()
+	{
+		logEvent(UNDO << TYPE_SHIFT);
+		return mMoves[--mPosition];
+	}
+	
+	// Step forward over the next undone move and return it. The caller
+	// applies it again. Check canRedo first.
+	public int redo()
+	{
+		logEvent(REDO << TYPE_SHIFT);
+		return mMoves[mPosition++];
+	}
+	
+	// Return the move redo would return, without redoing it
+	public int peekRedo()
+	{
+		return mMoves[mPosition];
+	}
+	
+	// The most recent event, -1 if there is none
+	public int getLastEvent()
+	{
+		return mLastEvent;
+	}
+	
+	private void logEvent(int event)
+	{
+		if (mNumEvents == mEvents.length) mEvents = Arrays.copyOf(mEvents, 2*mEvents.length);
+		mEvents[mNumEvents++] = event;
+		mLastEvent = event;
+	}
+	
+	// Methods for saving. Events accumulate until clearEvents is called.
+	public int getNumEvents()
+	{
+		return mNumEvents;
+	}
+	
+	public int getEvent(int i)
+	{
+		return mEvents[i];
+	}
+	
+	public void clearEvents()
+	{
+		mNumEvents = 0;
+	}
+	
+	public int getLength()
+	{
+		return mLength;
+	}
+	
+	public int getPosition()
+	{
+		return mPosition;
+	}
+	
+	public int getMove(int i)
+	{
+		return mMoves[i];
+	}
+	
+	// Replace the journal's contents, e.g. with saved moves
+	public void setMoves(int [] moves, int length, int position)
+	{
+		if (position < 0 || position > length || length > moves.length)
+			throw new IllegalArgumentException("Bad journal position " + position + " of " + length);
+		
+		mMoves = Arrays.copyOf(moves, Math.max(length, INITIAL_CAPACITY));
+		mLength = length;
+		mPosition = position;
+	}
+	
+	// Forget the oldest moves, keeping at most maxMoves. Moves that are
+	// currently undone are always kept, so they can still be redone.
+	public void trim(int maxMoves)
+	{
+		int numDropped = Math.min(mLength - maxMoves, mPosition);
+		if (numDropped <= 0) return;
+		
+		System.arraycopy(mMoves, numDropped, mMoves, 0, mLength - numDropped);
+		mLength -= numDropped;
+		mPosition -= numDropped;
+		
+		// The first move can no longer be undone together with the move
+		// before it
+		if (mLength > 0) mMoves[0] &= ~LINKED_FLAG;
+	}
+}
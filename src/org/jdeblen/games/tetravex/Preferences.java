@@ -32,6 +32,14 @@ public class Preferences extends PreferenceActivity {
 	private static final String OPT_PUZZLE_SIZE_DEF = "3";
 	private static final String OPT_NUMBER_OF_EDGE_TYPES = "number_of_edge_types";
 	private static final String OPT_NUMBER_OF_EDGE_TYPES_DEF = "8";
+	private static final String OPT_DIFFICULTY = "difficulty";
+	private static final String OPT_DIFFICULTY_DEF = "0";
+	private static final String OPT_DEAD_END_WARNINGS = "dead_end_warnings";
+	private static final boolean OPT_DEAD_END_WARNINGS_DEF = false;
+	private static final String OPT_DRAG_RENDER_THREAD = "drag_render_thread";
+	private static final boolean OPT_DRAG_RENDER_THREAD_DEF = false;
+	private static final String OPT_VECTOR_TILES = "vector_tiles";
+	private static final boolean OPT_VECTOR_TILES_DEF = false;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState)
@@ -74,5 +82,29 @@ public class Preferences extends PreferenceActivity {
 		return Integer.parseInt(s);
 	}
 	
+	// One of the DifficultyRater levels
+	public static int getDifficulty(Context context)
+	{
+		String s = PreferenceManager.getDefaultSharedPreferences(context).getString(OPT_DIFFICULTY, OPT_DIFFICULTY_DEF);
+		return Integer.parseInt(s);
+	}
+	
+	public static boolean getDeadEndWarnings(Context context)
+	{
+		return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(OPT_DEAD_END_WARNINGS, OPT_DEAD_END_WARNINGS_DEF);
+	}
+	
+	// Takes effect with the next puzzle
+	public static boolean getDragRenderThread(Context context)
+	{
+		return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(OPT_DRAG_RENDER_THREAD, OPT_DRAG_RENDER_THREAD_DEF);
+	}
+	
+	// Takes effect with the next puzzle
+	public static boolean getVectorTiles(Context context)
+	{
+		return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(OPT_VECTOR_TILES, OPT_VECTOR_TILES_DEF);
+	}
+	
 	
 }
@@ -0,0 +1,178 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.nio.ByteBuffer;
+
+// Puzzle packs: many puzzles of one size and number of edge values in a
+// compact file, so that curated puzzles can be shipped with the game. Packs
+// are made by the generator in tools/, and all puzzles in them have a
+// unique solution.
+//
+// A pack starts with a header: magic number, format version, size, maxValue
+// and difficulty (one of the DifficultyRater levels). Then come fixed-length
+// records, one per puzzle, holding the edges of its solution as nibbles.
+// Neighboring tiles share an edge, so only the edges between squares and
+// along the border are stored: for each column, the top edge of each tile
+// and then the bottom edge of the last one, and for each row the left edge
+// of each tile and then the right edge of the last one. That is size+1
+// values per column and row, so a record takes size*(size+1) bytes - 72
+// bytes for an 8x8 puzzle. As records have a fixed length, a pack that was
+// cut short is used up to its last complete record.
+final class PuzzlePack {
+	private static final int PACK_MAGIC = 0x5456416b; // "TVAk"
+	private static final int PACK_VERSION = 1;
+	public static final int HEADER_LENGTH = 8;
+	
+	private final int mSize;
+	private final int mMaxValue;
+	private final int mDifficulty;
+	
+	public PuzzlePack(int size, int maxValue, int difficulty)
+	{
+		if (size < 1 || maxValue < 1 || maxValue > TileCode.MAX_NIBBLE_VALUE + 1)
+			throw new IllegalArgumentException("Bad size " + size + " or maxValue " + maxValue);
+		
+		mSize = size;
+		mMaxValue = maxValue;
+		mDifficulty = difficulty;
+	}
+	
+	// Read the header at the start of a pack
+	public static PuzzlePack fromHeader(byte [] header)
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		if (header.length < HEADER_LENGTH || buffer.getInt() != PACK_MAGIC)
+			throw new IllegalArgumentException("Not a puzzle pack");
+		
+		int version = buffer.get() & 0xff;
+		if (version != PACK_VERSION) throw new IllegalArgumentException("Unknown pack version " + version);
+		
+		return new PuzzlePack(buffer.get() & 0xff, buffer.get() & 0xff, buffer.get() & 0xff);
+	}
+	
+	public byte [] getHeader()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+		buffer.putInt(PACK_MAGIC);
+		buffer.put((byte) PACK_VERSION);
+		buffer.put((byte) mSize);
+		buffer.put((byte) mMaxValue);
+		buffer.put((byte) mDifficulty);
+		return buffer.array();
+	}
+	
+	// Getters for the header fields
+	public int getSize()
+	{
+		return mSize;
+	}
+	
+	public int getMaxValue()
+	{
+		return mMaxValue;
+	}
+	
+	public int getDifficulty()
+	{
+		return mDifficulty;
+	}
+	
+	public int getRecordLength()
+	{
+		return mSize*(mSize+1);
+	}
+	
+	// Number of complete records in a pack file of the given length
+	public int getNumRecords(long fileLength)
+	{
+		return (int) Math.max(0, (fileLength - HEADER_LENGTH) / getRecordLength());
+	}
+	
+	// Write a puzzle's solution as a record
+	public void encode(Tetravex puzzle, byte [] record, int offset)
+	{
+		if (puzzle.getSize() != mSize || puzzle.getMaxValue() != mMaxValue)
+			throw new IllegalArgumentException("Puzzle does not match the pack");
+		
+		NibbleWriter writer = new NibbleWriter(record, offset);
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++) writer.put(TileCode.top(puzzle.getSolutionTileCode(x, y)));
+			writer.put(TileCode.bottom(puzzle.getSolutionTileCode(x, mSize-1)));
+		}
+		for (int y=0; y<mSize; y++)
+		{
+			for (int x=0; x<mSize; x++) writer.put(TileCode.left(puzzle.getSolutionTileCode(x, y)));
+			writer.put(TileCode.right(puzzle.getSolutionTileCode(mSize-1, y)));
+		}
+	}
+	
+	// Read the puzzle in a record. Throws IllegalArgumentException if an edge
+	// value is out of range.
+	public Tetravex decode(byte [] record, int offset)
+	{
+		int [] solution = new int[mSize*mSize];
+		int columnOffset = 2*offset;
+		int rowOffset = 2*offset + mSize*(mSize+1);
+		
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++)
+			{
+				int top = getNibble(record, columnOffset + x*(mSize+1) + y);
+				int bottom = getNibble(record, columnOffset + x*(mSize+1) + y + 1);
+				int left = getNibble(record, rowOffset + y*(mSize+1) + x);
+				int right = getNibble(record, rowOffset + y*(mSize+1) + x + 1);
+				solution[x*mSize + y] = TileCode.make(top, left, right, bottom);
+			}
+		}
+		
+		return Tetravex.fromSolution(mSize, mMaxValue, solution, true);
+	}
+	
+	private int getNibble(byte [] data, int nibbleIndex)
+	{
+		int value = (data[nibbleIndex >>> 1] >>> ((nibbleIndex & 1) == 0 ? 4 : 0)) & 0xf;
+		if (value >= mMaxValue) throw new IllegalArgumentException("Edge value out of range");
+		return value;
+	}
+	
+	// Packs nibbles into bytes, high nibble first
+	private static class NibbleWriter
+	{
+		private final byte [] mData;
+		private int mNibbleIndex;
+		
+		NibbleWriter(byte [] data, int offset)
+		{
+			mData = data;
+			mNibbleIndex = 2*offset;
+		}
+		
+		void put(int value)
+		{
+			int i = mNibbleIndex >>> 1;
+			if ((mNibbleIndex & 1) == 0) mData[i] = (byte) (value << 4);
+			else mData[i] |= value;
+			mNibbleIndex++;
+		}
+	}
+}
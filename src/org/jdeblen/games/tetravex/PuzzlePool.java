@@ -0,0 +1,271 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+// A few puzzles generated ahead of time, so that starting a new puzzle does
+// not have to wait for one. Puzzles are generated on a low priority
+// background thread for one size, number of edge values and difficulty at
+// a time, and the pool is emptied when those change. The pool is saved to a
+// file and reloaded when the application restarts.
+//
+// There is one pool per process, so it survives the activity being
+// recreated.
+final class PuzzlePool {
+	private static final String TAG = "PuzzlePool";
+	private static final String POOL_FILE = "puzzle_pool";
+	private static final int POOL_MAGIC = 0x54564172; // "TVAr"
+	private static final int POOL_SIZE = 3;
+	private static final int MAX_PUZZLE_SIZE = 32; // Largest size in the preferences
+	
+	// Time for making each puzzle's solution unique. Generation runs in the
+	// background, so this can be much longer than on the UI thread.
+	private static final long TIME_BUDGET_MILLIS = 2000;
+	
+	private static PuzzlePool instance = null;
+	
+	private final PuzzleStorage mStorage;
+	private final ExecutorService mExecutor;
+	
+	// Guarded by this. mGeneration changes along with the parameters, so
+	// that puzzles generated for old parameters are dropped.
+	private final LinkedList<Tetravex> mPuzzles = new LinkedList<Tetravex>();
+	private int mSize = 0; // 0 until parameters are set
+	private int mMaxValue = 0;
+	private int mDifficulty = DifficultyRater.ANY;
+	private int mGeneration = 0;
+	private boolean mFilling = false;
+	
+	public static synchronized PuzzlePool getInstance(Context context)
+	{
+		if (instance == null) instance = new PuzzlePool(context.getApplicationContext());
+		return instance;
+	}
+	
+	private PuzzlePool(Context context)
+	{
+		mStorage = new FilePuzzleStorage(context.getFilesDir());
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				load();
+			}
+		});
+	}
+	
+	// Set the kind of puzzle to generate. The pool is emptied if this changes.
+	public synchronized void setParameters(int size, int maxValue, int difficulty)
+	{
+		if (size == mSize && maxValue == mMaxValue && difficulty == mDifficulty) return;
+		
+		mSize = size;
+		mMaxValue = maxValue;
+		mDifficulty = difficulty;
+		mGeneration++;
+		mPuzzles.clear();
+		fill();
+	}
+	
+	// Return a ready puzzle, or null if there is none yet
+	public synchronized Tetravex take()
+	{
+		Tetravex puzzle = mPuzzles.poll();
+		fill();
+		return puzzle;
+	}
+	
+	// Save the pool's puzzles, in the background
+	public void save()
+	{
+		PuzzleSaver.saveAsync(mStorage, POOL_FILE, toBytes());
+	}
+	
+	// Start generating puzzles, if the pool is not full. Called with the lock
+	// held.
+	private void fill()
+	{
+		if (mFilling || mSize == 0 || mPuzzles.size() >= POOL_SIZE) return;
+		
+		mFilling = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				generatePuzzles();
+			}
+		});
+	}
+	
+	private void generatePuzzles()
+	{
+		while (true)
+		{
+			int size;
+			int maxValue;
+			int difficulty;
+			int generation;
+			synchronized (this)
+			{
+				if (mSize == 0 || mPuzzles.size() >= POOL_SIZE)
+				{
+					mFilling = false;
+					return;
+				}
+				
+				size = mSize;
+				maxValue = mMaxValue;
+				difficulty = mDifficulty;
+				generation = mGeneration;
+			}
+			
+			Tetravex puzzle = new Tetravex(size, maxValue, difficulty, TIME_BUDGET_MILLIS);
+			Tracer.puzzleGenerated(puzzle);
+			
+			synchronized (this)
+			{
+				if (generation == mGeneration) mPuzzles.add(puzzle);
+			}
+		}
+	}
+	
+	// Pool file: magic number, size, maxValue, difficulty and number of
+	// puzzles, then for each puzzle a flag for a unique solution, its length
+	// and its data (see Tetravex.toBytes)
+	private synchronized byte [] toBytes()
+	{
+		byte [][] puzzleData = new byte[mPuzzles.size()][];
+		int length = 20;
+		for (int i=0; i<puzzleData.length; i++)
+		{
+			puzzleData[i] = mPuzzles.get(i).toBytes();
+			length += 5 + puzzleData[i].length;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(POOL_MAGIC);
+		buffer.putInt(mSize);
+		buffer.putInt(mMaxValue);
+		buffer.putInt(mDifficulty);
+		buffer.putInt(puzzleData.length);
+		for (int i=0; i<puzzleData.length; i++)
+		{
+			buffer.put((byte) (mPuzzles.get(i).hasUniqueSolution() ? 1 : 0));
+			buffer.putInt(puzzleData[i].length);
+			buffer.put(puzzleData[i]);
+		}
+		
+		return buffer.array();
+	}
+	
+	// Load saved puzzles, unless they are for other parameters than the ones
+	// already set. Runs on the pool's thread.
+	private void load()
+	{
+		PuzzleSaver.waitForSaves();
+		byte [] data = mStorage.read(POOL_FILE);
+		if (data == null) return;
+		
+		LinkedList<Tetravex> puzzles = new LinkedList<Tetravex>();
+		int size;
+		int maxValue;
+		int difficulty;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			int magic = buffer.getInt();
+			if (magic != POOL_MAGIC) return;
+			size = buffer.getInt();
+			maxValue = buffer.getInt();
+			difficulty = buffer.getInt();
+			
+			// The parameters are used for generating puzzles even if the
+			// pool is empty, so they must make sense
+			if (size < 1 || size > MAX_PUZZLE_SIZE || maxValue < 2 || maxValue > TetravexTileFactory.MAX_VALUES ||
+					difficulty < DifficultyRater.ANY || difficulty > DifficultyRater.HARD)
+			{
+				Log.w(TAG, "Pool file has bad parameters");
+				return;
+			}
+			
+			int numPuzzles = buffer.getInt();
+			for (int i=0; i<numPuzzles; i++)
+			{
+				boolean hasUniqueSolution = (buffer.get() != 0);
+				byte [] puzzleData = new byte[buffer.getInt()];
+				buffer.get(puzzleData);
+				
+				Tetravex puzzle = Tetravex.fromBytes(puzzleData);
+				if (puzzle == null || puzzle.getSize() != size || puzzle.getMaxValue() != maxValue) return;
+				puzzle.setHasUniqueSolution(hasUniqueSolution);
+				puzzles.add(puzzle);
+			}
+		} catch (BufferUnderflowException e) {
+			Log.w(TAG, "Pool file is truncated");
+			return;
+		} catch (NegativeArraySizeException e) {
+			Log.w(TAG, "Pool file is corrupt");
+			return;
+		}
+		
+		synchronized (this)
+		{
+			if (mSize == 0)
+			{
+				mSize = size;
+				mMaxValue = maxValue;
+				mDifficulty = difficulty;
+			}
+			
+			if (size == mSize && maxValue == mMaxValue && difficulty == mDifficulty)
+			{
+				while (!puzzles.isEmpty() && mPuzzles.size() < POOL_SIZE) mPuzzles.add(puzzles.poll());
+			}
+			
+			fill();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Writes save files on a background thread. Callers hand over a snapshot of
+// the file's contents, so the UI thread only pays for building a small byte
+// array. The files themselves are written by a PuzzleStorage, which for
+// FilePuzzleStorage means atomically.
+//
+// Writes happen in the order they are queued, as a journal is only valid
+// after the save file it continues from. A write of the same file as the
+// last one queued, if that has not started yet, is coalesced with it: a save
+// replaces its data, and an append is added to it. Writes queued behind
+// other files' writes are never moved ahead of them.
+final class PuzzleSaver {
+	private static final String TAG = "PuzzleSaver";
+	
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, TAG);
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	// The last write queued, while it has not started. Guarded by the
+	// PuzzleSaver class lock.
+	private static PendingWrite lastWrite = null;
+	
+	private static class PendingWrite
+	{
+		PuzzleStorage storage;
+		String fileName;
+		boolean replace; // Replace the file's contents, rather than append
+		byte [] data;
+	}
+	
+	// Not instantiable
+	private PuzzleSaver()
+	{
+	}
+	
+	// Queue a save of the given file
+	public static void saveAsync(PuzzleStorage storage, String fileName, byte [] data)
+	{
+		queueWrite(storage, fileName, data, true);
+	}
+	
+	// Queue data to be added to the end of the given file
+	public static void appendAsync(PuzzleStorage storage, String fileName, byte [] data)
+	{
+		queueWrite(storage, fileName, data, false);
+	}
+	
+	private static void queueWrite(PuzzleStorage storage, String fileName, byte [] data, boolean replace)
+	{
+		final PendingWrite write;
+		synchronized (PuzzleSaver.class)
+		{
+			// The last write is of this file, so it can pick up the new data
+			if (lastWrite != null && lastWrite.storage == storage && lastWrite.fileName.equals(fileName))
+			{
+				if (replace)
+				{
+					lastWrite.replace = true;
+					lastWrite.data = data;
+				}
+				else
+				{
+					byte [] combinedData = new byte[lastWrite.data.length + data.length];
+					System.arraycopy(lastWrite.data, 0, combinedData, 0, lastWrite.data.length);
+					System.arraycopy(data, 0, combinedData, lastWrite.data.length, data.length);
+					lastWrite.data = combinedData;
+				}
+				return;
+			}
+			
+			write = new PendingWrite();
+			write.storage = storage;
+			write.fileName = fileName;
+			write.replace = replace;
+			write.data = data;
+			lastWrite = write;
+		}
+		
+		executor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				// Once started, the write takes no more data
+				synchronized (PuzzleSaver.class)
+				{
+					if (lastWrite == write) lastWrite = null;
+				}
+				
+				if (write.replace) write.storage.write(write.fileName, write.data);
+				else write.storage.append(write.fileName, write.data);
+			}
+		});
+	}
+	
+	// Block until all queued saves are written, e.g. before reading a file
+	// that may still be being saved
+	public static void waitForSaves()
+	{
+		try {
+			executor.submit(new Runnable() {
+				@Override
+				public void run()
+				{
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Cannot happen, as the task does nothing
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+// Where puzzles and other small files are saved. The model only reads and
+// writes whole files through this, so it does not depend on Android and can
+// run on a plain JVM (e.g. for benchmarks). On the device, files go to the
+// application's files directory (see FilePuzzleStorage).
+interface PuzzleStorage {
+	// Return the whole file, or null if it does not exist or cannot be read
+	byte [] read(String fileName);
+	
+	// Replace a file's contents in one go. Returns false and leaves any old
+	// contents in place if something goes wrong.
+	boolean write(String fileName, byte [] data);
+	
+	// Add data to the end of a file. Returns false if something goes wrong,
+	// in which case part of the data may have been written.
+	boolean append(String fileName, byte [] data);
+}
@@ -0,0 +1,157 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Random;
+
+// The tiles of a puzzle as the player sees them: every tile has an id (its
+// index in a shuffled list of the solution's tiles), and may be on a grid
+// square. Moves are made through here, so that tile locations stay in step
+// with the puzzle's board. Grid squares are numbered x*size + y.
+//
+// A tile dragged from one square to another is removed and then placed, but
+// counts as one move for undo. That only holds while the tile is still being
+// dragged, so anything else that ends the drag must call dropTileOffGrid.
+final class PuzzleTiles {
+	// Told about tiles that move when syncing with the puzzle's board
+	public interface Listener
+	{
+		void moveTileToGrid(int tileNum, int x, int y);
+		void moveTileOffGrid(int tileNum);
+	}
+	
+	private final Tetravex mPuzzle;
+	private final int mSize;
+	private final int [] mTiles; // TileCodes, in random order
+	private final TileIndex mTileIndex;
+	private final int [] mSquareTiles; // Tile on each grid square, -1 if empty
+	private final int [] mTileSquares; // Grid square of each tile, -1 if off the grid
+	private int mLastRemovedTile = -1; // Tile just taken off the grid, if any
+	
+	public PuzzleTiles(Tetravex puzzle, Random randomNumberFactory)
+	{
+		mPuzzle = puzzle;
+		mSize = puzzle.getSize();
+		mTiles = new int[mSize*mSize];
+		for (int x=0; x < mSize; x++)
+		{
+			for (int y=0; y < mSize; y++)
+			{
+				mTiles[x*mSize + y] = puzzle.getSolutionTileCode(x, y);
+			}
+		}
+		
+		// Shuffle (Fisher-Yates)
+		for (int i=mTiles.length-1; i > 0; i--)
+		{
+			int j = randomNumberFactory.nextInt(i+1);
+			int tile = mTiles[i];
+			mTiles[i] = mTiles[j];
+			mTiles[j] = tile;
+		}
+		
+		// Match the tiles on the board (we may be restoring a saved game)
+		// with tile ids
+		mTileIndex = new TileIndex(mTiles);
+		mSquareTiles = new int[mTiles.length];
+		mTileSquares = new int[mTiles.length];
+		mTileIndex.matchBoard(puzzle, mSquareTiles, mTileSquares);
+	}
+	
+	public int getTileCode(int tileNum)
+	{
+		return mTiles[tileNum];
+	}
+	
+	// Return the grid square holding the given tile, or -1 if the tile is not
+	// on the grid
+	public int getTileLocation(int tileNum)
+	{
+		return mTileSquares[tileNum];
+	}
+	
+	// Take the tile on a square off the grid, at the start of a drag
+	public int removeTile(int x, int y)
+	{
+		int square = x*mSize + y;
+		mLastRemovedTile = mSquareTiles[square];
+		if (mSquareTiles[square] != -1)
+		{
+			mTileSquares[mSquareTiles[square]] = -1;
+			mSquareTiles[square] = -1;
+		}
+		
+		return mPuzzle.removeTile(x, y);
+	}
+	
+	// Place a tile on a square, at the end of a drag
+	public int placeTile(int tileNum, int x, int y)
+	{
+		int moveType = mPuzzle.placeTileCode(mTiles[tileNum], x, y, tileNum == mLastRemovedTile);
+		mLastRemovedTile = -1;
+		if (moveType != Tetravex.INVALID_MOVE)
+		{
+			int square = x*mSize + y;
+			mSquareTiles[square] = tileNum;
+			mTileSquares[tileNum] = square;
+		}
+		
+		return moveType;
+	}
+	
+	// A drag ended off the grid, so the tile's next placement is a move of
+	// its own
+	public void dropTileOffGrid()
+	{
+		mLastRemovedTile = -1;
+	}
+	
+	// Move tiles to match a square of the puzzle's board, after the puzzle
+	// changed it itself (undo, redo or a hint)
+	public void syncSquare(int square, Listener listener)
+	{
+		mLastRemovedTile = -1;
+		
+		int x = square / mSize;
+		int y = square % mSize;
+		int code = mPuzzle.getBoardTileCode(x, y);
+		
+		int tileNum = mSquareTiles[square];
+		if (tileNum != -1 && mTiles[tileNum] != code)
+		{
+			mTileSquares[tileNum] = -1;
+			mSquareTiles[square] = -1;
+			listener.moveTileOffGrid(tileNum);
+		}
+		
+		if (code != TileCode.EMPTY && mSquareTiles[square] == -1)
+		{
+			// Any tile with the right edges will do, as long as it is not
+			// already on the grid
+			tileNum = mTileIndex.firstTile(code);
+			while (tileNum != -1 && mTileSquares[tileNum] != -1) tileNum = mTileIndex.nextTile(tileNum);
+			if (tileNum == -1) return;
+			
+			mSquareTiles[square] = tileNum;
+			mTileSquares[tileNum] = square;
+			listener.moveTileToGrid(tileNum, x, y);
+		}
+	}
+}
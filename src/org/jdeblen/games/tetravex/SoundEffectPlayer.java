@@ -20,25 +20,145 @@
 package org.jdeblen.games.tetravex;
 
 import android.content.Context;
+import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.media.SoundPool;
 
-// Simple class to play sound effects - copied from "Hello, Android" by Ed
-// Burnette, third edition, page 106.
+// Plays sound effects with little delay. Effects are decoded once, in init,
+// rather than each time they are played: short effects go into a SoundPool,
+// which mixes up to MAX_STREAMS of them at once, and longer ones (SoundPool
+// truncates samples over about 1 MB decoded) each get a prepared
+// MediaPlayer that is rewound for every play.
+//
+// Originally based on the simple player from "Hello, Android" by Ed
+// Burnette, third edition, page 106, which is still used for effects that
+// were not preloaded or have not finished loading.
 public class SoundEffectPlayer {
-	private static MediaPlayer mp = null;
+	private static final int MAX_STREAMS = 4;
+	
+	// Effects to preload
+	private static final int [] shortEffects = {R.raw.judge_gavel, R.raw.frying_pan_impact};
+	private static final int [] longEffects = {R.raw.computer_start_up};
+	
+	private static SoundPool soundPool = null;
+	private static final int [] soundIds = new int[shortEffects.length];
+	private static final boolean [] soundLoaded = new boolean[shortEffects.length];
+	private static final MediaPlayer [] longPlayers = new MediaPlayer[longEffects.length];
+	private static final int [] streamIds = new int[MAX_STREAMS]; // Recent streams, for stop
+	private static int nextStream = 0;
+	
+	private static MediaPlayer mp = null; // Fallback player
 	private static boolean enabled = true;
+	
+	// Decode all effects. Call when the activity is created.
+	public static void init(Context context)
+	{
+		release();
+		
+		soundPool = new SoundPool(MAX_STREAMS, AudioManager.STREAM_MUSIC, 0);
+		soundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+			@Override
+			public void onLoadComplete(SoundPool pool, int soundId, int status)
+			{
+				for (int i=0; i<shortEffects.length; i++)
+				{
+					if (pool == soundPool && soundIds[i] == soundId) soundLoaded[i] = (status == 0);
+				}
+			}
+		});
+		
+		for (int i=0; i<shortEffects.length; i++)
+		{
+			soundLoaded[i] = false;
+			soundIds[i] = soundPool.load(context, shortEffects[i], 1);
+		}
+		
+		for (int i=0; i<longEffects.length; i++)
+		{
+			longPlayers[i] = MediaPlayer.create(context, longEffects[i]);
+		}
+	}
+	
+	// Free all decoded effects. Call when the activity is destroyed.
+	public static void release()
+	{
+		stop(null);
+		
+		if (soundPool != null)
+		{
+			soundPool.release();
+			soundPool = null;
+		}
+		
+		for (int i=0; i<longPlayers.length; i++)
+		{
+			if (longPlayers[i] != null)
+			{
+				longPlayers[i].release();
+				longPlayers[i] = null;
+			}
+		}
+	}
 
 	public static void play(Context context, int resource)
 	{
 		if (!enabled) return;
 		
-		stop(context);
-		mp = MediaPlayer.create(context, resource);
-		mp.start();
+		if (!playPreloaded(resource))
+		{
+			if (mp != null)
+			{
+				mp.stop();
+				mp.release();
+			}
+			mp = MediaPlayer.create(context, resource);
+			if (mp != null) mp.start();
+		}
+	}
+	
+	// Play a preloaded effect, returning false if it is not available
+	private static boolean playPreloaded(int resource)
+	{
+		for (int i=0; i<shortEffects.length; i++)
+		{
+			if (shortEffects[i] == resource && soundPool != null && soundLoaded[i])
+			{
+				// The pool stops its oldest stream if all are in use
+				streamIds[nextStream] = soundPool.play(soundIds[i], 1, 1, 1, 0, 1);
+				nextStream = (nextStream + 1) % MAX_STREAMS;
+				return true;
+			}
+		}
+		
+		for (int i=0; i<longEffects.length; i++)
+		{
+			if (longEffects[i] == resource && longPlayers[i] != null)
+			{
+				longPlayers[i].seekTo(0);
+				longPlayers[i].start();
+				return true;
+			}
+		}
+		
+		return false;
 	}
 	
 	public static void stop(Context context)
 	{
+		if (soundPool != null)
+		{
+			for (int i=0; i<MAX_STREAMS; i++)
+			{
+				if (streamIds[i] != 0) soundPool.stop(streamIds[i]);
+				streamIds[i] = 0;
+			}
+		}
+		
+		for (MediaPlayer player : longPlayers)
+		{
+			if (player != null && player.isPlaying()) player.pause();
+		}
+		
 		if (mp != null)
 		{
 			mp.stop();
@@ -19,13 +19,13 @@
 *********************************************************************/
 package org.jdeblen.games.tetravex;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Random;
+import java.util.zip.CRC32;
 
-import android.content.Context;
 import android.util.Log;
 
 public class Tetravex {
@@ -41,14 +41,59 @@ public class Tetravex {
 	private int mMaxValue; // Maximum number of the values on the tiles
 	
 	// Puzzle representation
-	// Note that a puzzle may have more than one solution. Thus, it is possible
-	// for the user to win but for the solution and board matrices to not match.
-	private Tile [][] mSolution; // A solution, computed upon initialization
-	private Tile [][] mBoard; // Tracks user progress, initially empty
+	// Note that a puzzle may have more than one solution unless it was created
+	// with startNewUniquePuzzle. Thus, it is possible for the user to win but
+	// for the solution and board matrices to not match.
+	// Tiles are stored as TileCodes, with square (x,y) at index x*mSize + y.
+	private int [] mSolution; // A solution, computed upon initialization
+	private int [] mBoard; // Tracks user progress, initially empty
 	private int mNumTilesPlaced; // Tracks number of tiles placed on board
 	
-	// Convenience class for both the class itself and for users to encapsulate
-	// the four values defining a tile and to allow for easy tile construction.
+	// Moves made on the board, for undo and redo and for saving only what
+	// changed. Saves normally just append the journal's new events to a
+	// journal file. Every so often, a checkpoint writes the whole puzzle
+	// instead and starts a new journal file. The checkpoint id ties a journal
+	// file to the puzzle file it continues.
+	private MoveJournal mJournal;
+	private long mCheckpointId; // 0 if never saved
+	private int mEventsSinceCheckpoint; // Events in the journal file
+	private final int [] mChangedSquares = new int[2]; // By the last undo or redo
+	private int mNumChangedSquares;
+	
+	// Candidate tiles for each square, for hints. Built on the first hint,
+	// and then kept up to date with every change to the board.
+	private HintEngine mHintEngine;
+	private int mHintTileCode;
+	
+	// Results of generating a puzzle with a unique solution
+	private boolean mHasUniqueSolution; // False if unknown
+	private int mGenerationAttempts; // Number of candidate puzzles checked
+	private double mDifficultyRating; // 0 if not rated
+	
+	// Candidates for startNewRatedPuzzle, and the time for rating each
+	private static final int RATED_CANDIDATES = 7;
+	private static final long RATING_TIME_BUDGET_MILLIS = 5;
+	
+	// Save file format (see getSaveData). Files without the magic number are
+	// in the original format, which is still read.
+	private static final int SAVE_MAGIC = 0x54564170; // "TVAp"
+	private static final int SAVE_VERSION = 2;
+	private static final int SAVE_HEADER_LENGTH = 7;
+	private static final int SAVE_CRC_LENGTH = 4;
+	private static final int TILE_LENGTH = 2;
+	private static final int MAX_SAVED_VALUE = TileCode.MAX_NIBBLE_VALUE;
+	private static final int JOURNAL_MAGIC = 0x5456416a; // "TVAj"
+	private static final int JOURNAL_HEADER_LENGTH = 12;
+	private static final int JOURNAL_RECORD_LENGTH = 4;
+	
+	// Journal events allowed before the next save checkpoints, and moves kept
+	// for undo at a checkpoint
+	private static final int CHECKPOINT_INTERVAL = 256;
+	private static final int MAX_UNDO_MOVES = 1024;
+	
+	// Convenience class for users to encapsulate the four values defining a
+	// tile and to allow for easy tile construction. The model itself stores
+	// tiles as TileCodes and only creates Tiles when asked for them.
 	static class Tile
 	{
 		public int top;
@@ -76,6 +121,11 @@ public class Tetravex {
 			right = t.right;
 			bottom = t.bottom;
 		}
+		
+		public Tile(int code)
+		{
+			this(TileCode.top(code), TileCode.left(code), TileCode.right(code), TileCode.bottom(code));
+		}
 	}
 	
 	// Construction - initialize variables and compute a new puzzle
@@ -87,19 +137,114 @@ public class Tetravex {
 		startNewPuzzle(s,v);
 	}
 	
+	public Tetravex(int s, int v, long timeBudgetMillis)
+	{
+		startNewUniquePuzzle(s,v,timeBudgetMillis);
+	}
+	
+	public Tetravex(int s, int v, int difficulty, long timeBudgetMillis)
+	{
+		startNewRatedPuzzle(s,v,difficulty,timeBudgetMillis);
+	}
+	
 	public void startNewPuzzle(int s, int v)
 	{
 		initVariables(s,v);
 		createNewPuzzle();
 	}
 	
+	// Like startNewPuzzle, but the puzzle is repaired until it has exactly one
+	// solution. If that takes longer than timeBudgetMillis, the last candidate
+	// is kept even though it may have more than one solution. Check the result
+	// with hasUniqueSolution.
+	public void startNewUniquePuzzle(int s, int v, long timeBudgetMillis)
+	{
+		initVariables(s,v);
+		createNewPuzzle();
+		makeSolutionUnique(System.nanoTime() + timeBudgetMillis*1000000);
+	}
+	
+	// Like startNewUniquePuzzle, but aiming for a difficulty
+	// (DifficultyRater.EASY, MEDIUM or HARD). Several candidates are
+	// generated within the time budget and rated, and the easiest, middle or
+	// hardest one is kept. Candidates with a unique solution are preferred.
+	// Ratings depend heavily on the size and number of edge values, so this
+	// picks relative to the puzzles generated rather than from fixed bands.
+	public void startNewRatedPuzzle(int s, int v, int difficulty, long timeBudgetMillis)
+	{
+		if (difficulty == DifficultyRater.ANY)
+		{
+			startNewUniquePuzzle(s,v,timeBudgetMillis);
+			return;
+		}
+		
+		long deadline = System.nanoTime() + timeBudgetMillis*1000000;
+		int [][] solutions = new int[RATED_CANDIDATES][];
+		final double [] ratings = new double[RATED_CANDIDATES];
+		final boolean [] unique = new boolean[RATED_CANDIDATES];
+		int numCandidates = 0;
+		int numAttempts = 0;
+		
+		while (numCandidates < RATED_CANDIDATES)
+		{
+			long now = System.nanoTime();
+			if (numCandidates > 0 && now >= deadline) break;
+			
+			// Share the remaining time between the remaining candidates
+			initVariables(s,v);
+			createNewPuzzle();
+			makeSolutionUnique(now + (deadline - now) / (RATED_CANDIDATES - numCandidates));
+			numAttempts += mGenerationAttempts;
+			
+			ratings[numCandidates] = new DifficultyRater(this).rate(System.nanoTime() + RATING_TIME_BUDGET_MILLIS*1000000);
+			solutions[numCandidates] = mSolution;
+			unique[numCandidates] = mHasUniqueSolution;
+			numCandidates++;
+		}
+		
+		// Rank the candidates, unique ones first
+		Integer [] order = new Integer[numCandidates];
+		for (int i=0; i<numCandidates; i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				if (unique[a] != unique[b]) return unique[a] ? -1 : 1;
+				return Double.compare(ratings[a], ratings[b]);
+			}
+		});
+		
+		int numUnique = 0;
+		while (numUnique < numCandidates && unique[order[numUnique]]) numUnique++;
+		int numChoices = (numUnique > 0) ? numUnique : numCandidates;
+		
+		int choice;
+		if (difficulty == DifficultyRater.EASY) choice = order[0];
+		else if (difficulty == DifficultyRater.HARD) choice = order[numChoices-1];
+		else choice = order[numChoices/2];
+		
+		mSolution = solutions[choice];
+		mHasUniqueSolution = unique[choice];
+		mGenerationAttempts = numAttempts;
+		mDifficultyRating = ratings[choice];
+	}
+	
 	private void initVariables(int s, int v)
 	{
 		mSize = s;
 		mMaxValue = v;
 		mNumTilesPlaced = 0;
-		mSolution = new Tile[s][s];
-		mBoard = new Tile[s][s];
+		mSolution = new int[s*s];
+		mBoard = new int[s*s];
+		Arrays.fill(mBoard, TileCode.EMPTY);
+		mJournal = new MoveJournal();
+		mCheckpointId = 0;
+		mEventsSinceCheckpoint = 0;
+		mNumChangedSquares = 0;
+		mHintEngine = null;
+		mHasUniqueSolution = false;
+		mGenerationAttempts = 0;
+		mDifficultyRating = 0;
 	}
 	
 	private void createNewPuzzle()
@@ -110,79 +255,236 @@ public class Tetravex {
 		{
 			for (int y=0; y<mSize; y++)
 			{
-				mSolution[x][y] = new Tile();
+				int left, top;
+				
+				if (x == 0) left = randomNumberFactory.nextInt(mMaxValue);
+				else left = TileCode.right(mSolution[(x-1)*mSize + y]);
 				
-				if (x == 0) mSolution[x][y].left = randomNumberFactory.nextInt(mMaxValue);
-				else mSolution[x][y].left = mSolution[x-1][y].right;
+				if (y==0) top = randomNumberFactory.nextInt(mMaxValue);
+				else top = TileCode.bottom(mSolution[x*mSize + y-1]);
 				
-				if (y==0) mSolution[x][y].top = randomNumberFactory.nextInt(mMaxValue);
-				else mSolution[x][y].top = mSolution[x][y-1].bottom;
+				int right = randomNumberFactory.nextInt(mMaxValue);
 				
-				mSolution[x][y].right = randomNumberFactory.nextInt(mMaxValue);
+				int bottom = randomNumberFactory.nextInt(mMaxValue);
 				
-				mSolution[x][y].bottom = randomNumberFactory.nextInt(mMaxValue);
+				mSolution[x*mSize + y] = TileCode.make(top, left, right, bottom);
 			}
 		}
 	}
 	
-	// Static factory method to recreate a puzzle previously saved
-	public static Tetravex restorePuzzle(String puzzleName, Context context)
+	// Count solutions of the current puzzle, stopping at the second one. When
+	// there is a second solution, change an edge of a tile that it puts
+	// somewhere else. The edge is shared with a neighbor (if any), so
+	// mSolution remains a solution while the other one usually breaks. Repeat
+	// until the solution is unique or the deadline (System.nanoTime) passes.
+	private void makeSolutionUnique(long deadline)
 	{
-		String fileName = puzzleName + ".puzzle";
-		FileInputStream fis = null;
-		Tetravex puzzle = null;
+		Random randomNumberFactory = new Random();
 		
-		// Open the file
-		try {
-			fis = context.openFileInput(fileName);
-			puzzle = new Tetravex();
-			
-			// Read puzzle metadata
-			int puzzleSize = fis.read();
-			int puzzleMaxValue = fis.read();
-			puzzle.initVariables(puzzleSize, puzzleMaxValue);
-			puzzle.mNumTilesPlaced = fis.read();
+		while (true)
+		{
+			mGenerationAttempts++;
+			TetravexSolver solver = new TetravexSolver(this);
+			int numSolutions = solver.countSolutions(2, deadline);
+			if (numSolutions == 1) mHasUniqueSolution = true;
+			if (numSolutions != 2) break;
 			
-			// Read current board 
-			for(int i=0; i<puzzle.mSize; i++)
+			// Look at whichever solution found is not mSolution
+			int numDifferences = 0;
+			int [] differentSquares = new int[mSize*mSize];
+			boolean useLast = solutionMatches(solver, false);
+			for (int x=0; x<mSize; x++)
 			{
-				for (int j=0; j<puzzle.mSize; j++)
+				for (int y=0; y<mSize; y++)
 				{
-					int tileTopValue = fis.read();
-					if (tileTopValue == Byte.MAX_VALUE) continue;
-					
-					puzzle.mBoard[i][j] = new Tile();
-					puzzle.mBoard[i][j].top = tileTopValue;
-					puzzle.mBoard[i][j].left = fis.read();
-					puzzle.mBoard[i][j].right = fis.read();
-					puzzle.mBoard[i][j].bottom = fis.read();
+					int code = useLast ? solver.getLastSolutionTileCode(x, y) : solver.getSolutionTileCode(x, y);
+					if (code != mSolution[x*mSize + y]) differentSquares[numDifferences++] = x*mSize + y;
 				}
 			}
 			
-			// Read solution
-			for(int i=0; i<puzzle.mSize; i++)
+			int square = differentSquares[randomNumberFactory.nextInt(numDifferences)];
+			changeSolutionEdge(square / mSize, square % mSize, randomNumberFactory);
+		}
+	}
+	
+	private boolean solutionMatches(TetravexSolver solver, boolean useLast)
+	{
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++)
 			{
-				for (int j=0; j<puzzle.mSize; j++)
-				{
-					puzzle.mSolution[i][j] = new Tile();
-					puzzle.mSolution[i][j].top = fis.read();
-					puzzle.mSolution[i][j].left = fis.read();
-					puzzle.mSolution[i][j].right = fis.read();
-					puzzle.mSolution[i][j].bottom = fis.read();
-				}
+				int code = useLast ? solver.getLastSolutionTileCode(x, y) : solver.getSolutionTileCode(x, y);
+				if (code != mSolution[x*mSize + y]) return false;
 			}
-			
-		} catch(FileNotFoundException e) {
+		}
+		
+		return true;
+	}
+	
+	// Give a random edge of the solution tile at (x,y) a new random value,
+	// along with the matching edge of the neighbor on that side
+	private void changeSolutionEdge(int x, int y, Random randomNumberFactory)
+	{
+		if (mMaxValue < 2) return;
+		
+		int i = x*mSize + y;
+		int value;
+		switch (randomNumberFactory.nextInt(4))
+		{
+			case 0:
+				value = newValue(TileCode.top(mSolution[i]), randomNumberFactory);
+				mSolution[i] = TileCode.withTop(mSolution[i], value);
+				if (y > 0) mSolution[i-1] = TileCode.withBottom(mSolution[i-1], value);
+				break;
+			case 1:
+				value = newValue(TileCode.left(mSolution[i]), randomNumberFactory);
+				mSolution[i] = TileCode.withLeft(mSolution[i], value);
+				if (x > 0) mSolution[i-mSize] = TileCode.withRight(mSolution[i-mSize], value);
+				break;
+			case 2:
+				value = newValue(TileCode.right(mSolution[i]), randomNumberFactory);
+				mSolution[i] = TileCode.withRight(mSolution[i], value);
+				if (x < (mSize-1)) mSolution[i+mSize] = TileCode.withLeft(mSolution[i+mSize], value);
+				break;
+			case 3:
+				value = newValue(TileCode.bottom(mSolution[i]), randomNumberFactory);
+				mSolution[i] = TileCode.withBottom(mSolution[i], value);
+				if (y < (mSize-1)) mSolution[i+1] = TileCode.withTop(mSolution[i+1], value);
+				break;
+		}
+	}
+	
+	// Random value different from oldValue
+	private int newValue(int oldValue, Random randomNumberFactory)
+	{
+		int value = randomNumberFactory.nextInt(mMaxValue-1);
+		if (value >= oldValue) value++;
+		return value;
+	}
+	
+	// Static factory method to recreate a puzzle previously saved
+	public static Tetravex restorePuzzle(String puzzleName, PuzzleStorage storage)
+	{
+		String fileName = puzzleName + ".puzzle";
+		Tetravex puzzle;
+		
+		// An earlier save may still be on its way to the file
+		PuzzleSaver.waitForSaves();
+		
+		byte [] data = storage.read(fileName);
+		if (data == null) return null;
+		
+		puzzle = parseSaveData(data, fileName);
+		if (puzzle == null) return null;
+		
+		// Catch up on moves made since the checkpoint. If the journal cannot be
+		// read to its end, appending to it would lose the next moves too, so
+		// the next save writes a new checkpoint instead.
+		if (puzzle.mCheckpointId != 0)
+		{
+			byte [] journalData = storage.read(puzzleName + ".journal");
+			if (journalData == null || !puzzle.replayJournal(ByteBuffer.wrap(journalData)))
+			{
+				puzzle.mCheckpointId = 0;
+			}
+		}
+		
+		return puzzle;
+	}
+	
+	// Puzzles as bytes in the save file format, e.g. for keeping them in other
+	// files. Only the puzzle and board are kept, not how it was generated.
+	byte [] toBytes()
+	{
+		return getSaveData();
+	}
+	
+	static Tetravex fromBytes(byte [] data)
+	{
+		return parseSaveData(data, "puzzle data");
+	}
+	
+	// Decode a save file of either format, returning null if it is corrupt
+	private static Tetravex parseSaveData(byte [] data, String name)
+	{
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			if (data.length >= 4 && buffer.getInt(0) == SAVE_MAGIC) return readSaveData(buffer);
+			else return readLegacySaveData(buffer);
+		} catch (BufferUnderflowException e) {
+			Log.w(TAG, "Save file " + name + " is truncated");
 			return null;
-		} catch (IOException e) {
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Save file " + name + " is corrupt: " + e.getMessage());
 			return null;
-		} finally {
-			try {
-				if (fis != null) fis.close();
-			} catch (IOException e) {}
+		}
+	}
+	
+	// Apply the events in a journal file, if it continues from this puzzle's
+	// checkpoint. Events are checked as they are replayed. Replay stops at the
+	// first bad one, and at a partly written event at the end. Returns whether
+	// the whole journal was replayed.
+	private boolean replayJournal(ByteBuffer buffer)
+	{
+		if (buffer.remaining() < JOURNAL_HEADER_LENGTH || buffer.getInt() != JOURNAL_MAGIC ||
+				buffer.getLong() != mCheckpointId)
+		{
+			Log.w(TAG, "Journal does not match the save file");
+			return false;
 		}
 		
-		return puzzle;
+		int numEvents = 0;
+		boolean complete = true;
+		while (buffer.remaining() >= JOURNAL_RECORD_LENGTH)
+		{
+			if (!replayEvent(buffer.getInt()))
+			{
+				Log.w(TAG, "Journal event " + numEvents + " is invalid");
+				complete = false;
+				break;
+			}
+			numEvents++;
+		}
+		if (buffer.hasRemaining()) complete = false;
+		
+		mJournal.clearEvents();
+		mEventsSinceCheckpoint = numEvents;
+		return complete;
+	}
+	
+	private boolean replayEvent(int event)
+	{
+		switch (MoveJournal.getType(event))
+		{
+			case MoveJournal.PLACE:
+			case MoveJournal.REMOVE:
+				int square = MoveJournal.getSquare(event);
+				int code = MoveJournal.getTileCode(event);
+				if (square >= mSize*mSize) return false;
+				
+				if (MoveJournal.getType(event) == MoveJournal.PLACE)
+				{
+					return placeTileCode(code, square / mSize, square % mSize, MoveJournal.isLinked(event)) != INVALID_MOVE;
+				}
+				else
+				{
+					if (mBoard[square] != code) return false;
+					removeTile(square / mSize, square % mSize);
+					return true;
+				}
+				
+			case MoveJournal.UNDO:
+				if (!mJournal.canUndo()) return false;
+				undoStep();
+				return true;
+				
+			case MoveJournal.REDO:
+				if (!mJournal.canRedo()) return false;
+				redoStep();
+				return true;
+		}
+		
+		return false;
 	}
 	
 	// Private do-nothing constructor for use by restorePuzzle
@@ -196,25 +498,88 @@ public class Tetravex {
 		return mSize;
 	}
 	
+	public int getMaxValue()
+	{
+		return mMaxValue;
+	}
+	
+	public boolean hasUniqueSolution()
+	{
+		return mHasUniqueSolution;
+	}
+	
+	public int getGenerationAttempts()
+	{
+		return mGenerationAttempts;
+	}
+	
+	// Rating of a puzzle made by startNewRatedPuzzle (see DifficultyRater),
+	// 0 for other puzzles
+	public double getDifficultyRating()
+	{
+		return mDifficultyRating;
+	}
+	
+	// For puzzles recreated with fromBytes
+	void setHasUniqueSolution(boolean hasUniqueSolution)
+	{
+		mHasUniqueSolution = hasUniqueSolution;
+	}
+	
+	// Tile getters allocate a new Tile on each call. Use the TileCode getters
+	// in performance-sensitive code. getBoardTileCode returns TileCode.EMPTY
+	// for an empty square.
 	public Tile getSolutionTile(int x, int y)
 	{
-		return new Tile(mSolution[x][y]);
+		return new Tile(mSolution[x*mSize + y]);
 	}
 	
 	public Tile getBoardTile(int x, int y)
 	{
-		if (mBoard[x][y] == null) return null;
-		else return new Tile(mBoard[x][y]);
+		return TileCode.toTile(mBoard[x*mSize + y]);
+	}
+	
+	public int getSolutionTileCode(int x, int y)
+	{
+		return mSolution[x*mSize + y];
+	}
+	
+	public int getBoardTileCode(int x, int y)
+	{
+		return mBoard[x*mSize + y];
 	}
 	
 	// Methods for building a solution
 	public int placeTile(Tile t, int x, int y)
 	{
-		if (!isValidMove(t, x, y)) return INVALID_MOVE;
+		return placeTileCode(TileCode.fromTile(t), x, y);
+	}
+	
+	public int placeTileCode(int code, int x, int y)
+	{
+		return placeTileCode(code, x, y, false);
+	}
+	
+	// Set movedOnBoard if the tile was just removed from another square. The
+	// removal and placement are then one move, for undo.
+	public int placeTileCode(int code, int x, int y, boolean movedOnBoard)
+	{
+		if (!isValidMove(code, x, y))
+		{
+			Tracer.moveRejected(x*mSize + y, code);
+			return INVALID_MOVE;
+		}
 		
-		if (mBoard[x][y] == null) mNumTilesPlaced++;
-		mBoard[x][y] = new Tile(t);
-		Log.d(TAG, "Placing tile number " + mNumTilesPlaced + " at " + mBoard[x][y].top + mBoard[x][y].left + mBoard[x][y].right + mBoard[x][y].bottom + " to " + x + y);
+		Tracer.movePlaced(x*mSize + y, code);
+		
+		int lastEvent = mJournal.getLastEvent();
+		boolean linked = movedOnBoard && lastEvent != -1 && MoveJournal.getType(lastEvent) == MoveJournal.REMOVE &&
+				MoveJournal.getTileCode(lastEvent) == code;
+		mJournal.record(MoveJournal.makeMove(MoveJournal.PLACE, x*mSize + y, code, linked));
+		
+		if (mBoard[x*mSize + y] == TileCode.EMPTY) mNumTilesPlaced++;
+		mBoard[x*mSize + y] = code;
+		if (mHintEngine != null) mHintEngine.place(x*mSize + y, code);
 		
 		if (mNumTilesPlaced == mSize*mSize) return WINNING_MOVE;
 		else return VALID_MOVE;
@@ -222,83 +587,406 @@ public class Tetravex {
 	
 	public int removeTile(int x, int y)
 	{
-		if (mBoard[x][y] != null)
+		int code = mBoard[x*mSize + y];
+		if (code != TileCode.EMPTY)
 		{
-			Log.d(TAG, "Removing tile " + mBoard[x][y].top + mBoard[x][y].left + mBoard[x][y].right + mBoard[x][y].bottom + " from " + x + y);
 			mNumTilesPlaced--;
-			mBoard[x][y] = null;
+			mBoard[x*mSize + y] = TileCode.EMPTY;
+			if (mHintEngine != null) mHintEngine.remove(x*mSize + y);
+			mJournal.record(MoveJournal.makeMove(MoveJournal.REMOVE, x*mSize + y, code, false));
+			Tracer.tileRemoved(x*mSize + y, code);
 		}
 		
 		return VALID_MOVE;
 	}
+	
+	// Methods for undo and redo. A tile moved from one square to another is
+	// undone and redone as one move. Both return the number of squares
+	// changed, which are available from getChangedSquare (as x*size + y).
+	public boolean canUndo()
+	{
+		return mJournal.canUndo();
+	}
+	
+	public boolean canRedo()
+	{
+		return mJournal.canRedo();
+	}
+	
+	public int undo()
+	{
+		mNumChangedSquares = 0;
+		if (!mJournal.canUndo()) return 0;
+		
+		int move;
+		do {
+			move = undoStep();
+		} while (MoveJournal.isLinked(move) && mJournal.canUndo());
+		
+		return mNumChangedSquares;
+	}
+	
+	public int redo()
+	{
+		mNumChangedSquares = 0;
+		if (!mJournal.canRedo()) return 0;
+		
+		do {
+			redoStep();
+		} while (mJournal.canRedo() && MoveJournal.isLinked(mJournal.peekRedo()));
+		
+		return mNumChangedSquares;
+	}
+	
+	public int getChangedSquare(int i)
+	{
+		return mChangedSquares[i];
+	}
+	
+	public boolean isSolved()
+	{
+		return mNumTilesPlaced == mSize*mSize;
+	}
+	
+	// Find a tile to place next. Forced moves (a square that only one of the
+	// remaining tiles fits, or a tile that only fits one square) come first.
+	// Otherwise, a tile from the solution is suggested, if it still fits.
+	// Returns the square (x*size + y), with the tile available from
+	// getHintTileCode, or -1 if there is no hint.
+	public int findHint()
+	{
+		if (mHintEngine == null) mHintEngine = new HintEngine(mSize, mMaxValue, mSolution, mBoard);
+		
+		int square = mHintEngine.findForcedMove();
+		if (square != -1)
+		{
+			mHintTileCode = mHintEngine.getHintTileCode();
+			return square;
+		}
+		
+		for (square=0; square<mSize*mSize; square++)
+		{
+			int code = mSolution[square];
+			if (mHintEngine.isAvailable(code) && isValidMove(code, square / mSize, square % mSize))
+			{
+				mHintTileCode = code;
+				return square;
+			}
+		}
+		
+		return -1;
+	}
+	
+	public int getHintTileCode()
+	{
+		return mHintTileCode;
+	}
+	
+	// Undo or redo a single journal record
+	private int undoStep()
+	{
+		int move = mJournal.undo();
+		setSquare(MoveJournal.getSquare(move),
+				(MoveJournal.getType(move) == MoveJournal.PLACE) ? TileCode.EMPTY : MoveJournal.getTileCode(move));
+		return move;
+	}
+	
+	private int redoStep()
+	{
+		int move = mJournal.redo();
+		setSquare(MoveJournal.getSquare(move),
+				(MoveJournal.getType(move) == MoveJournal.PLACE) ? MoveJournal.getTileCode(move) : TileCode.EMPTY);
+		return move;
+	}
+	
+	private void setSquare(int square, int code)
+	{
+		if (mBoard[square] != TileCode.EMPTY) mNumTilesPlaced--;
+		if (code != TileCode.EMPTY) mNumTilesPlaced++;
+		if (mHintEngine != null)
+		{
+			if (mBoard[square] != TileCode.EMPTY) mHintEngine.remove(square);
+			if (code != TileCode.EMPTY) mHintEngine.place(square, code);
+		}
+		mBoard[square] = code;
+		if (mNumChangedSquares < mChangedSquares.length) mChangedSquares[mNumChangedSquares++] = square;
+	}
 
 	// For now, this method simply checks that neighbor tiles are compatible.
 	// This could be expanded to check the validity of the tiles.
-	private boolean isValidMove(Tile t, int x, int y)
+	private boolean isValidMove(int code, int x, int y)
 	{
-		if (mBoard[x][y] != null) return false;
-		if (y > 0 && mBoard[x][y-1] != null && t.top != mBoard[x][y-1].bottom) return false;
-		if (x > 0 && mBoard[x-1][y] != null && t.left != mBoard[x-1][y].right) return false;
-		if (x < (mSize-1) && mBoard[x+1][y] != null && t.right != mBoard[x+1][y].left) return false;
-		if (y < (mSize-1) && mBoard[x][y+1] != null && t.bottom != mBoard[x][y+1].top) return false;
+		int i = x*mSize + y;
+		if (code == TileCode.EMPTY || mBoard[i] != TileCode.EMPTY) return false;
+		if (y > 0 && mBoard[i-1] != TileCode.EMPTY && TileCode.top(code) != TileCode.bottom(mBoard[i-1])) return false;
+		if (x > 0 && mBoard[i-mSize] != TileCode.EMPTY && TileCode.left(code) != TileCode.right(mBoard[i-mSize])) return false;
+		if (x < (mSize-1) && mBoard[i+mSize] != TileCode.EMPTY && TileCode.right(code) != TileCode.left(mBoard[i+mSize])) return false;
+		if (y < (mSize-1) && mBoard[i+1] != TileCode.EMPTY && TileCode.bottom(code) != TileCode.top(mBoard[i+1])) return false;
 		
 		return true;
 	}
 	
 	// Methods for saving and restoring puzzles
-	public boolean savePuzzle(String puzzleName, Context context)
+	// savePuzzle writes the whole puzzle before returning. savePuzzleAsync
+	// normally only appends the moves made since the last save to the
+	// journal file, and leaves the writing to a background thread (see
+	// PuzzleSaver).
+	public boolean savePuzzle(String puzzleName, PuzzleStorage storage)
 	{
-		String fileName = puzzleName + ".puzzle";
-		FileOutputStream fos = null;
+		checkpoint();
 		
-		// Open the file
-		try {
-			fos = context.openFileOutput(fileName, Context.MODE_PRIVATE);
-			
-			// Write puzzle metadata
-			fos.write(mSize);
-			fos.write(mMaxValue);
-			fos.write(mNumTilesPlaced);
-			
-			// Write current board 
-			for(int i=0; i<mSize; i++)
+		boolean saved = storage.write(puzzleName + ".puzzle", getSaveData());
+		return saved && storage.write(puzzleName + ".journal", getJournalHeader());
+	}
+	
+	public void savePuzzleAsync(String puzzleName, PuzzleStorage storage)
+	{
+		if (mCheckpointId == 0 || mEventsSinceCheckpoint + mJournal.getNumEvents() > CHECKPOINT_INTERVAL)
+		{
+			checkpoint();
+			PuzzleSaver.saveAsync(storage, puzzleName + ".puzzle", getSaveData());
+			PuzzleSaver.saveAsync(storage, puzzleName + ".journal", getJournalHeader());
+		}
+		else if (mJournal.getNumEvents() > 0)
+		{
+			PuzzleSaver.appendAsync(storage, puzzleName + ".journal", getJournalEvents());
+		}
+	}
+	
+	// Start a new journal file, from the puzzle's current state
+	private void checkpoint()
+	{
+		long checkpointId;
+		do {
+			checkpointId = new Random().nextLong();
+		} while (checkpointId == 0);
+		
+		mCheckpointId = checkpointId;
+		mEventsSinceCheckpoint = 0;
+		mJournal.clearEvents();
+		mJournal.trim(MAX_UNDO_MOVES);
+	}
+	
+	// Start of a journal file: magic number and checkpoint id
+	private byte [] getJournalHeader()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(JOURNAL_HEADER_LENGTH);
+		buffer.putInt(JOURNAL_MAGIC);
+		buffer.putLong(mCheckpointId);
+		return buffer.array();
+	}
+	
+	// Journal events since the last save, which are then marked as saved
+	private byte [] getJournalEvents()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(JOURNAL_RECORD_LENGTH*mJournal.getNumEvents());
+		for (int i=0; i<mJournal.getNumEvents(); i++)
+		{
+			buffer.putInt(mJournal.getEvent(i));
+		}
+		
+		mEventsSinceCheckpoint += mJournal.getNumEvents();
+		mJournal.clearEvents();
+		return buffer.array();
+	}
+	
+	// Contents of a save file for the puzzle in its current state:
+	//   magic number (4 bytes), format version (1 byte)
+	//   size, maxValue (1 byte each)
+	//   bitmap of occupied board squares, one bit per square (low bit first)
+	//   tiles on the board, for occupied squares only
+	//   solution tiles
+	//   checkpoint id (8 bytes), journal length and position (4 bytes each)
+	//   and the journal's moves (4 bytes each), new in version 2
+	//   CRC32 of everything before it (4 bytes)
+	// Tiles take two bytes, with one edge per nibble in the order top, left,
+	// right and bottom. Numbers are big-endian.
+	private byte [] getSaveData()
+	{
+		int numSquares = mSize*mSize;
+		int bitmapLength = (numSquares + 7) / 8;
+		int numOccupied = 0;
+		for(int i=0; i<numSquares; i++)
+		{
+			if (mBoard[i] != TileCode.EMPTY) numOccupied++;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(SAVE_HEADER_LENGTH + bitmapLength +
+				TILE_LENGTH*(numOccupied + numSquares) + 16 + JOURNAL_RECORD_LENGTH*mJournal.getLength() +
+				SAVE_CRC_LENGTH);
+		
+		// Write puzzle metadata
+		buffer.putInt(SAVE_MAGIC);
+		buffer.put((byte) SAVE_VERSION);
+		buffer.put((byte) mSize);
+		buffer.put((byte) mMaxValue);
+		
+		// Write current board, occupancy first
+		for(int i=0; i<numSquares; i+=8)
+		{
+			int bits = 0;
+			for (int j=0; j<8 && i+j<numSquares; j++)
 			{
-				for (int j=0; j<mSize; j++)
-				{
-					if (mBoard[i][j] == null) fos.write(Byte.MAX_VALUE);
-					else
-					{
-						fos.write(mBoard[i][j].top);
-						fos.write(mBoard[i][j].left);
-						fos.write(mBoard[i][j].right);
-						fos.write(mBoard[i][j].bottom);
-					}
-				}
+				if (mBoard[i+j] != TileCode.EMPTY) bits |= 1 << j;
 			}
+			buffer.put((byte) bits);
+		}
+		
+		for(int i=0; i<numSquares; i++)
+		{
+			if (mBoard[i] != TileCode.EMPTY) putTileCode(buffer, mBoard[i]);
+		}
+		
+		// Write solution
+		for(int i=0; i<numSquares; i++)
+		{
+			putTileCode(buffer, mSolution[i]);
+		}
+		
+		// Write journal
+		buffer.putLong(mCheckpointId);
+		buffer.putInt(mJournal.getLength());
+		buffer.putInt(mJournal.getPosition());
+		for (int i=0; i<mJournal.getLength(); i++)
+		{
+			buffer.putInt(mJournal.getMove(i));
+		}
+		
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int) crc.getValue());
+		
+		return buffer.array();
+	}
+	
+	private static void putTileCode(ByteBuffer buffer, int code)
+	{
+		buffer.putShort((short) TileCode.toNibbles(code));
+	}
+	
+	private static int getTileCode(ByteBuffer buffer, int maxValue)
+	{
+		return checkTileCode(TileCode.fromNibbles(buffer.getShort() & 0xffff), maxValue);
+	}
+	
+	private static int checkTileCode(int code, int maxValue)
+	{
+		if (TileCode.top(code) >= maxValue || TileCode.left(code) >= maxValue ||
+				TileCode.right(code) >= maxValue || TileCode.bottom(code) >= maxValue)
+		{
+			throw new IllegalArgumentException("Edge value out of range");
+		}
+		
+		return code;
+	}
+	
+	// Create a puzzle with the given solution (TileCodes by square), e.g. from
+	// a puzzle pack
+	static Tetravex fromSolution(int size, int maxValue, int [] solution, boolean hasUniqueSolution)
+	{
+		Tetravex puzzle = new Tetravex();
+		puzzle.initVariables(size, maxValue);
+		System.arraycopy(solution, 0, puzzle.mSolution, 0, size*size);
+		puzzle.mHasUniqueSolution = hasUniqueSolution;
+		return puzzle;
+	}
+	
+	// Check the header fields shared by both formats and create the puzzle
+	private static Tetravex createRestoredPuzzle(int puzzleSize, int puzzleMaxValue)
+	{
+		if (puzzleSize < 1 || puzzleMaxValue < 1 || puzzleMaxValue > MAX_SAVED_VALUE + 1)
+		{
+			throw new IllegalArgumentException("Bad size " + puzzleSize + " or maxValue " + puzzleMaxValue);
+		}
+		
+		Tetravex puzzle = new Tetravex();
+		puzzle.initVariables(puzzleSize, puzzleMaxValue);
+		return puzzle;
+	}
+	
+	// Read the current format, positioned at the start of the file
+	private static Tetravex readSaveData(ByteBuffer buffer)
+	{
+		int crcPosition = buffer.limit() - SAVE_CRC_LENGTH;
+		if (crcPosition < SAVE_HEADER_LENGTH) throw new BufferUnderflowException();
+		
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, crcPosition);
+		if (buffer.getInt(crcPosition) != (int) crc.getValue()) throw new IllegalArgumentException("Bad checksum");
+		buffer.limit(crcPosition);
+		
+		buffer.getInt(); // Magic number
+		int version = buffer.get() & 0xff;
+		if (version < 1 || version > SAVE_VERSION) throw new IllegalArgumentException("Unknown version " + version);
+		
+		Tetravex puzzle = createRestoredPuzzle(buffer.get() & 0xff, buffer.get() & 0xff);
+		int numSquares = puzzle.mSize*puzzle.mSize;
+		
+		// Read current board. The bitmap comes first, so remember where it is.
+		int bitmapPosition = buffer.position();
+		buffer.position(bitmapPosition + (numSquares + 7) / 8);
+		for(int i=0; i<numSquares; i++)
+		{
+			if ((buffer.get(bitmapPosition + i/8) & (1 << (i%8))) == 0) continue;
 			
-			// Write solution
-			for(int i=0; i<mSize; i++)
+			puzzle.mBoard[i] = getTileCode(buffer, puzzle.mMaxValue);
+			puzzle.mNumTilesPlaced++;
+		}
+		
+		// Read solution
+		for(int i=0; i<numSquares; i++)
+		{
+			puzzle.mSolution[i] = getTileCode(buffer, puzzle.mMaxValue);
+		}
+		
+		// Read journal. Version 1 files have none.
+		if (version >= 2)
+		{
+			puzzle.mCheckpointId = buffer.getLong();
+			int length = buffer.getInt();
+			int position = buffer.getInt();
+			if (length < 0 || length > buffer.remaining() / JOURNAL_RECORD_LENGTH)
+				throw new IllegalArgumentException("Bad journal length " + length);
+			
+			int [] moves = new int[length];
+			for (int i=0; i<length; i++)
 			{
-				for (int j=0; j<mSize; j++)
-				{
-					fos.write(mSolution[i][j].top);
-					fos.write(mSolution[i][j].left);
-					fos.write(mSolution[i][j].right);
-					fos.write(mSolution[i][j].bottom);
-				}
+				moves[i] = buffer.getInt();
+				if (MoveJournal.getSquare(moves[i]) >= numSquares || MoveJournal.getType(moves[i]) > MoveJournal.REMOVE)
+					throw new IllegalArgumentException("Bad journal move " + i);
 			}
+			puzzle.mJournal.setMoves(moves, length, position);
+		}
+		
+		return puzzle;
+	}
+	
+	// Read the original format, which has no header: size, maxValue and
+	// number of tiles placed, then the board with Byte.MAX_VALUE for empty
+	// squares and then the solution, one byte per edge
+	private static Tetravex readLegacySaveData(ByteBuffer buffer)
+	{
+		Tetravex puzzle = createRestoredPuzzle(buffer.get() & 0xff, buffer.get() & 0xff);
+		puzzle.mNumTilesPlaced = buffer.get() & 0xff;
+		int numSquares = puzzle.mSize*puzzle.mSize;
+		
+		// Read current board 
+		for(int i=0; i<numSquares; i++)
+		{
+			int tileTopValue = buffer.get() & 0xff;
+			if (tileTopValue == Byte.MAX_VALUE) continue;
 			
-		} catch(FileNotFoundException e) {
-			return false;
-		} catch (IOException e) {
-			context.deleteFile(fileName);
-			return false;
-		} finally {
-			try {
-				if (fos != null) fos.close();
-			} catch (IOException e) {}
+			puzzle.mBoard[i] = checkTileCode(TileCode.make(tileTopValue, buffer.get() & 0xff,
+					buffer.get() & 0xff, buffer.get() & 0xff), puzzle.mMaxValue);
 		}
 		
-		return true;
+		// Read solution
+		for(int i=0; i<numSquares; i++)
+		{
+			puzzle.mSolution[i] = checkTileCode(TileCode.make(buffer.get() & 0xff, buffer.get() & 0xff,
+					buffer.get() & 0xff, buffer.get() & 0xff), puzzle.mMaxValue);
+		}
+		
+		return puzzle;
 	}
 }
\ No newline at end of file
@@ -19,50 +19,144 @@
 *********************************************************************/
 package org.jdeblen.games.tetravex;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.File;
+import java.util.Random;
 
 import android.app.Activity;
+import android.app.ProgressDialog;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
 import android.media.AudioManager;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.widget.FrameLayout;
+import android.widget.Toast;
 
 public class TetravexController extends Activity {
+	private static final String TAG = "TetravexController";
 	private final String saved_puzzle = "saved_puzzle";
+	private final String frame_stats = "frame_stats.txt";
+	private final String trace = "trace.txt";
+	
+	// Time allowed for making a new puzzle's solution unique, when the pool
+	// has none ready. The user waits for it, so this must stay short.
+	private static final long NEW_PUZZLE_TIME_BUDGET_MILLIS = 50;
 	
 	private Tetravex mTetravexModel;
+	private PuzzleStorage mStorage;
+	private PuzzlePool mPuzzlePool;
 	private TetravexView mTetravexView;
-	private ArrayList<Tetravex.Tile> mTiles;
+	private FrameStats mFrameStats = null; // Only while turned on in the debug menu
+	
+	// Tile ids and locations, kept up to date as tiles are placed and removed
+	private PuzzleTiles mPuzzleTiles;
+	private final PuzzleTiles.Listener mTileListener = new PuzzleTiles.Listener() {
+		@Override
+		public void moveTileToGrid(int tileNum, int x, int y)
+		{
+			mTetravexView.moveTileToGrid(tileNum, x, y);
+		}
+		
+		@Override
+		public void moveTileOffGrid(int tileNum)
+		{
+			mTetravexView.moveTileOffGrid(tileNum);
+		}
+	};
+	
+	// Shown while a new puzzle is made on a background thread. The model is
+	// null until the first puzzle is ready.
+	private ProgressDialog mProgressDialog = null;
+	
+	// Warnings for boards that can no longer be completed (if enabled in the
+	// preferences, which are read in onResume). mDeadEnd is the result for
+	// the latest board checked. Results are only shown if their board is
+	// still the latest one once they reach the UI thread.
+	private boolean mDeadEndWarnings;
+	private DeadEndChecker mDeadEndChecker;
+	private boolean mDeadEnd = false;
+	private final DeadEndChecker.Listener mDeadEndListener = new DeadEndChecker.Listener() {
+		@Override
+		public void onBoardChecked(final int checkNumber, final boolean deadEnd)
+		{
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run()
+				{
+					if (mDeadEndChecker.isLatestCheck(checkNumber)) showDeadEnd(deadEnd);
+				}
+			});
+		}
+	};
 		
     @Override
     public void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
+        mStorage = new FilePuzzleStorage(getFilesDir());
+        mPuzzlePool = PuzzlePool.getInstance(this);
         this.initPuzzleOnCreate();
         setVolumeControlStream(AudioManager.STREAM_MUSIC);
+        SoundEffectPlayer.init(this);
+    }
+    
+    @Override
+    public void onDestroy()
+    {
+    	super.onDestroy();
+    	SoundEffectPlayer.release();
+    	
+    	// A puzzle still being made is dropped
+    	if (mProgressDialog != null)
+    	{
+    		mProgressDialog.dismiss();
+    		mProgressDialog = null;
+    	}
     }
  
+    @Override
+    public void onResume()
+    {
+    	super.onResume();
+    	
+    	// Preferences may have changed, so make sure upcoming puzzles match
+    	mPuzzlePool.setParameters(Preferences.getPuzzleSize(this), Preferences.getNumberOfEdgeTypes(this),
+    			Preferences.getDifficulty(this));
+    	mDeadEndWarnings = Preferences.getDeadEndWarnings(this);
+    }
+    
     @Override
     public void onPause()
     {
     	super.onPause();
-    	mTetravexModel.savePuzzle(saved_puzzle, this);
+    	if (mTetravexModel != null)
+    	{
+    		mTetravexModel.savePuzzleAsync(saved_puzzle, mStorage);
+    		mDeadEndChecker.cancel();
+    	}
+    	mPuzzlePool.save();
     	SoundEffectPlayer.stop(this);
     }
     
+    @Override
+    public void onLowMemory()
+    {
+    	super.onLowMemory();
+    	TetravexTileFactory.clearCache();
+    }
+    
     private void initPuzzleOnCreate()
     {
     	// Try restoring saved puzzle
-    	mTetravexModel = Tetravex.restorePuzzle(saved_puzzle, this);
+    	mTetravexModel = Tetravex.restorePuzzle(saved_puzzle, mStorage);
     	if (mTetravexModel != null)
     	{
     		getTiles();
-    		mTetravexView = new TetravexView(this, mTetravexModel.getSize());
-    		setContentView(mTetravexView);
+    		showPuzzleView();
     	}
     
     	// If not, create a new puzzle
@@ -71,116 +165,218 @@ public class TetravexController extends Activity {
     
     private void initNewPuzzle()
     {
-    	mTetravexModel = new Tetravex(Preferences.getPuzzleSize(this), Preferences.getNumberOfEdgeTypes(this));
+    	// Take a puzzle from the pool if one is ready, or else make one now
+    	int puzzleSize = Preferences.getPuzzleSize(this);
+    	int numberOfEdgeTypes = Preferences.getNumberOfEdgeTypes(this);
+    	int difficulty = Preferences.getDifficulty(this);
+    	mPuzzlePool.setParameters(puzzleSize, numberOfEdgeTypes, difficulty);
+    	Tetravex puzzle = mPuzzlePool.take();
+    	
+    	if (puzzle != null) showNewPuzzle(puzzle);
+    	else generateNewPuzzle(puzzleSize, numberOfEdgeTypes, difficulty);
+    }
+    
+    // Make a puzzle on a background thread, as large ones take a while to
+    // generate and rate. The current puzzle stays in place, behind a progress
+    // dialog, until the new one is ready.
+    private void generateNewPuzzle(final int puzzleSize, final int numberOfEdgeTypes, final int difficulty)
+    {
+    	if (mProgressDialog != null) return;
+    	
+    	final ProgressDialog progressDialog = ProgressDialog.show(this, null,
+    			getString(R.string.generating_puzzle_message), true, false);
+    	mProgressDialog = progressDialog;
     	
+    	new Thread(new Runnable() {
+    		@Override
+    		public void run()
+    		{
+    			final Tetravex puzzle = new Tetravex(puzzleSize, numberOfEdgeTypes, difficulty,
+    					NEW_PUZZLE_TIME_BUDGET_MILLIS);
+    			Tracer.puzzleGenerated(puzzle);
+    			
+    			runOnUiThread(new Runnable() {
+    				@Override
+    				public void run()
+    				{
+    					// Dropped if the activity was destroyed meanwhile
+    					if (mProgressDialog != progressDialog) return;
+    					mProgressDialog.dismiss();
+    					mProgressDialog = null;
+    					showNewPuzzle(puzzle);
+    				}
+    			});
+    		}
+    	}, TAG).start();
+    }
+    
+    private void showNewPuzzle(Tetravex puzzle)
+    {
+    	mTetravexModel = puzzle;
         getTiles();
         
-        mTetravexView = new TetravexView(this, Preferences.getPuzzleSize(this));
-        setContentView(mTetravexView);
+        showPuzzleView();
     }
     
-    private void getTiles()
+    // Show a new view for the current puzzle. Dragged tiles are drawn on a
+    // layer with its own render thread, if enabled in the preferences.
+    private void showPuzzleView()
     {
-    	int puzzleSize = mTetravexModel.getSize();
-    	mTiles = new ArrayList<Tetravex.Tile>();
+    	mTetravexView = new TetravexView(this, mTetravexModel.getSize());
+    	mTetravexView.setFrameStats(mFrameStats);
+    	mTetravexView.setVectorMode(Preferences.getVectorTiles(this));
     	
-    	for (int i=0; i < puzzleSize; i++)
+    	if (Preferences.getDragRenderThread(this))
     	{
-    		for (int j=0; j < puzzleSize; j++)
-    		{
-    			mTiles.add(mTetravexModel.getSolutionTile(i,j));
-    		}
+    		DragLayer dragLayer = new DragLayer(this);
+    		mTetravexView.setDragLayer(dragLayer);
+    		
+    		FrameLayout layout = new FrameLayout(this);
+    		layout.addView(mTetravexView);
+    		layout.addView(dragLayer);
+    		setContentView(layout);
     	}
+    	else setContentView(mTetravexView);
+    }
+    
+    private void getTiles()
+    {
+    	mPuzzleTiles = new PuzzleTiles(mTetravexModel, new Random());
     	
-    	Collections.shuffle(mTiles);
+    	if (mDeadEndChecker != null) mDeadEndChecker.cancel();
+    	mDeadEndChecker = new DeadEndChecker(mTetravexModel);
+    	mDeadEnd = false;
     }
- 
+    
     // Public methods for the view to get tile information - the tile bitmaps
     // and the current tile locations on the grid. The latter is necessary to
-    // restore saved puzzles.
-    public Bitmap [] getTileBitmaps(int tileWidth, int tileHeight)
+    // restore saved puzzles. The view only asks for bitmaps of tiles in view.
+    public Bitmap getTileBitmap(int tileNum, int tileWidth, int tileHeight)
     {
-    	Bitmap [] tileBitmaps = new Bitmap[mTiles.size()];
-    	
-    	for (int i=0; i < mTiles.size(); i++)
-    	{
-    		tileBitmaps[i] = TetravexTileFactory.buildColorTile(mTiles.get(i), tileWidth, tileHeight);
-    	}
-
-    	return tileBitmaps;
+    	return TetravexTileFactory.getColorTile(mPuzzleTiles.getTileCode(tileNum), tileWidth, tileHeight);
     }
     
-    // Extra level of indirection to support changes in how tile data is stored
-    // or computed
-    public int [][] getTileLocations()
+    // TileCode of a tile, for drawing it without a bitmap
+    public int getTileCode(int tileNum)
     {
-    	return computeTileLocations();
+    	return mPuzzleTiles.getTileCode(tileNum);
     }
     
-    // Return a 2D array listing the tile (by id number) residing in each grid
-    // square. If no tile is in a square, the array entry is -1.
-    // If a puzzle has two identical tiles, we have to be careful that we don't
-    // place the same tile twice. This is the purpose of tileHasBeenPlaced.
-    private int [][] computeTileLocations()
+    // Return the grid square (x*size + y) holding the given tile, or -1 if the
+    // tile is not on the grid
+    public int getTileLocation(int tileNum)
     {
-    	int puzzleSize = mTetravexModel.getSize();
-    	int [][] tileLocations = new int[puzzleSize][puzzleSize];
-    	boolean [] tileHasBeenPlaced = new boolean[mTiles.size()];
+    	return mPuzzleTiles.getTileLocation(tileNum);
+    }
+    
+    // Controller just forwards communication between the model and view about
+    // tile placements. It's appropriate that these methods are almost trivial.
+    // (Converting tile numbers to actual tiles and keeping track of where
+    // each tile is are left to PuzzleTiles.)
+    public int removeTileFromGrid(int x, int y)
+    {
+    	int moveType = mPuzzleTiles.removeTile(x, y);
+    	checkForDeadEnd(-1);
+    	return moveType;
+    }
+    
+    public int placeTileOnGrid(int tileNum, int x, int y)
+    {
+    	int moveType = mPuzzleTiles.placeTile(tileNum, x, y);
+    	if (moveType != Tetravex.INVALID_MOVE) checkForDeadEnd(x*mTetravexModel.getSize() + y);
+    	return moveType;
+    }
+    
+    // A dragged tile was dropped in the scratch area
+    public void dropTileOffGrid()
+    {
+    	mPuzzleTiles.dropTileOffGrid();
+    }
+    
+    // Start checking whether the board can still be completed. square is
+    // the square of the tile just placed, or -1.
+    private void checkForDeadEnd(int square)
+    {
+    	if (mDeadEndWarnings) mDeadEndChecker.check(mTetravexModel, square, mDeadEndListener);
+    }
+    
+    // Warn once when the board turns into a dead end
+    private void showDeadEnd(boolean deadEnd)
+    {
+    	if (deadEnd && !mDeadEnd) Toast.makeText(this, R.string.dead_end_message, Toast.LENGTH_LONG).show();
+    	mDeadEnd = deadEnd;
+    }
+    
+    // Undo and redo. The model reports which squares changed, and the tiles
+    // on them are moved to match.
+    private void undoMove()
+    {
+    	syncChangedSquares(mTetravexModel.undo());
+    }
+    
+    private void redoMove()
+    {
+    	syncChangedSquares(mTetravexModel.redo());
+    }
+    
+    // Place a tile suggested by the model, as if the user had moved it
+    private void placeHintTile()
+    {
+    	int square = mTetravexModel.findHint();
+    	if (square == -1)
+    	{
+    		Toast.makeText(this, R.string.no_hint_message, Toast.LENGTH_SHORT).show();
+    		return;
+    	}
     	
-    	for (int i=0; i<puzzleSize; i++)
+    	int puzzleSize = mTetravexModel.getSize();
+    	int moveType = mTetravexModel.placeTileCode(mTetravexModel.getHintTileCode(), square / puzzleSize,
+    			square % puzzleSize);
+    	if (moveType != Tetravex.INVALID_MOVE)
     	{
-    		for (int j=0; j<puzzleSize; j++)
-    		{
-    			tileLocations[i][j] = -1;
-    			
-    			if (!emptyGridSquare(i,j))
-    			{
-    				for (int k=0; k<mTiles.size(); k++)
-    				{
-    					if (tileHasBeenPlaced[k]) continue;
-    					
-    					if (tilesMatch(mTetravexModel.getBoardTile(i,j), mTiles.get(k)))
-    					{
-    						tileLocations[i][j] = k;
-    						tileHasBeenPlaced[k] = true;
-    						break;
-    					}
-    				}
-    			}
-    		}
+    		syncSquare(square);
+    		checkForDeadEnd(square);
     	}
     	
-    	return tileLocations;
+    	// Sounds and a win are handled as for a tile the user dropped
+    	mTetravexView.showMoveResult(moveType);
     }
-    	
-    // Helper functions for computeTileLocations method
-    private boolean emptyGridSquare(int i, int j)
+    
+    private void syncChangedSquares(int numChangedSquares)
     {
-    	if (mTetravexModel.getBoardTile(i,j) == null) return true;
-    	else return false;
+    	for (int i=0; i<numChangedSquares; i++)
+    	{
+    		syncSquare(mTetravexModel.getChangedSquare(i));
+    	}
+    	
+    	mTetravexView.setPuzzleSolved(mTetravexModel.isSolved());
+    	checkForDeadEnd(-1);
     }
     
-   	private boolean tilesMatch(Tetravex.Tile tile1, Tetravex.Tile tile2)
+    private void syncSquare(int square)
     {
-   		if (tile1.top != tile2.top) {return false;}
-   		if (tile1.left != tile2.left) {return false;}
-   		if (tile1.right != tile2.right) {return false;}
-   		if (tile1.bottom != tile2.bottom) {return false;}
-   		
-   		return true;
+    	mPuzzleTiles.syncSquare(square, mTileListener);
     }
     
-    // Controller just forwards communication between the model and view about
-    // tile placements. It's appropriate that these methods are almost trivial.
-    // (The only nontrivial part is converting tile numbers to actual tiles.)
-    public int removeTileFromGrid(int x, int y)
+    // Turn frame measurements and their overlay on or off. Measurements
+    // start from scratch each time they are turned on.
+    private void toggleFrameStats()
     {
-    	return mTetravexModel.removeTile(x, y);
+    	mFrameStats = (mFrameStats == null) ? new FrameStats() : null;
+    	mTetravexView.setFrameStats(mFrameStats);
     }
     
-    public int placeTileOnGrid(int tileNum, int x, int y)
+    // Save a debug report to the files directory
+    private void exportReport(String fileName, String report)
     {
-    	return mTetravexModel.placeTile(mTiles.get(tileNum), x, y);
+    	Log.d(TAG, report);
+    	
+    	if (mStorage.write(fileName, report.getBytes()))
+    	{
+    		String path = new File(getFilesDir(), fileName).getPath();
+    		Toast.makeText(this, getString(R.string.report_exported, path), Toast.LENGTH_LONG).show();
+    	}
+    	else Toast.makeText(this, R.string.report_export_failed, Toast.LENGTH_LONG).show();
     }
     
     // Menu handling
@@ -190,6 +386,26 @@ public class TetravexController extends Activity {
     	super.onCreateOptionsMenu(menu);
     	MenuInflater inflater = getMenuInflater();
     	inflater.inflate(R.menu.menu, menu);
+    	
+    	// Benchmarks, frame stats and tracing are only offered in debug builds
+    	boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    	menu.findItem(R.id.benchmark_tile_drawing).setVisible(debuggable);
+    	menu.findItem(R.id.frame_stats).setVisible(debuggable);
+    	menu.findItem(R.id.export_frame_stats).setVisible(debuggable);
+    	menu.findItem(R.id.dump_trace).setVisible(debuggable && Tracer.ENABLED);
+    	return true;
+    }
+    
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu)
+    {
+    	super.onPrepareOptionsMenu(menu);
+    	if (mTetravexModel == null) return false;
+    	
+    	menu.findItem(R.id.undo).setEnabled(mTetravexModel.canUndo());
+    	menu.findItem(R.id.redo).setEnabled(mTetravexModel.canRedo());
+    	menu.findItem(R.id.frame_stats).setChecked(mFrameStats != null);
+    	menu.findItem(R.id.export_frame_stats).setEnabled(mFrameStats != null);
     	return true;
     }
     
@@ -198,12 +414,36 @@ public class TetravexController extends Activity {
     {
     	switch(item.getItemId())
     	{
+    		case R.id.undo:
+    			undoMove();
+    			return true;
+    		case R.id.redo:
+    			redoMove();
+    			return true;
+    		case R.id.hint:
+    			placeHintTile();
+    			return true;
     		case R.id.preferences:
     			startActivity(new Intent(this, Preferences.class));
     			return true;
     		case R.id.start_new_puzzle:
     			this.initNewPuzzle();
     			return true;
+    		case R.id.benchmark_tile_drawing:
+    			String result = TileRenderBenchmark.run(mTetravexModel.getSize(),
+    					mTetravexView.getTileWidth(), mTetravexView.getTileHeight());
+    			Log.d(TAG, result);
+    			Toast.makeText(this, result, Toast.LENGTH_LONG).show();
+    			return true;
+    		case R.id.frame_stats:
+    			toggleFrameStats();
+    			return true;
+    		case R.id.export_frame_stats:
+    			exportReport(frame_stats, mFrameStats.getReport());
+    			return true;
+    		case R.id.dump_trace:
+    			exportReport(trace, Tracer.getReport());
+    			return true;
     	}
     	
     	return false;
@@ -0,0 +1,257 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs TetravexSolver on several threads. The search tree is cut at a
+// shallow depth into many more subtrees than threads, and each thread keeps
+// taking the next subtree from a shared queue until the queue is empty. So
+// threads that draw small subtrees simply search more of them, which
+// balances the load without splitting work any further.
+//
+// Each thread has its own solver, built from the same tiles and board. All
+// solvers watch one cancel flag, which is set when enough solutions have
+// been found, when the deadline passes or when cancel is called. It is
+// cleared when a search finishes, so a cancel that arrives while a search
+// is being set up, or before it starts, still stops it.
+public class TetravexParallelSolver {
+	// Subtrees to aim for per thread, and the deepest the tree is cut to get
+	// them. The search tree is cut one level deeper at a time.
+	private static final int SUBTREES_PER_THREAD = 16;
+	private static final int MAX_SPLIT_DEPTH = 8;
+
+	// Puzzle to solve
+	private final int mSize;
+	private final int mMaxValue;
+	private final Tetravex.Tile [] mTiles;
+	private final Tetravex.Tile [][] mBoard; // Tiles placed before searching
+
+	private final int mNumThreads;
+	private final AtomicBoolean mCancelFlag = new AtomicBoolean();
+
+	// Results of the last search. The solution is written by whichever
+	// thread finds one first.
+	private final AtomicInteger mSolutionsFound = new AtomicInteger();
+	private final AtomicLong mNodeCount = new AtomicLong();
+	private volatile boolean mTimedOut;
+	private Tetravex.Tile [][] mSolution;
+	private long mElapsedNanos;
+
+	// Create a solver for the given puzzle, starting from its current board
+	public TetravexParallelSolver(Tetravex puzzle, int numThreads)
+	{
+		this(puzzle.getSize(), puzzle.getMaxValue(), getSolutionTiles(puzzle), numThreads);
+
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++)
+			{
+				mBoard[x][y] = puzzle.getBoardTile(x, y);
+			}
+		}
+	}
+
+	// Create a solver for an arbitrary set of tiles and an empty board, as
+	// for TetravexSolver
+	public TetravexParallelSolver(int size, int maxValue, Tetravex.Tile [] tiles, int numThreads)
+	{
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Need at least one thread but got " + numThreads);
+
+		mSize = size;
+		mMaxValue = maxValue;
+		mTiles = tiles.clone();
+		mBoard = new Tetravex.Tile[size][size];
+		mNumThreads = numThreads;
+
+		// Check the puzzle up front, rather than in the worker threads
+		new TetravexSolver(size, maxValue, mTiles);
+	}
+
+	private static Tetravex.Tile [] getSolutionTiles(Tetravex puzzle)
+	{
+		int size = puzzle.getSize();
+		Tetravex.Tile [] tiles = new Tetravex.Tile[size*size];
+
+		for (int x=0; x<size; x++)
+		{
+			for (int y=0; y<size; y++)
+			{
+				tiles[x*size + y] = puzzle.getSolutionTile(x, y);
+			}
+		}
+
+		return tiles;
+	}
+
+	private TetravexSolver createSolver()
+	{
+		TetravexSolver solver = new TetravexSolver(mSize, mMaxValue, mTiles);
+
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++)
+			{
+				if (mBoard[x][y] != null) solver.setBoardTile(mBoard[x][y], x, y);
+			}
+		}
+
+		solver.setCancelFlag(mCancelFlag);
+		return solver;
+	}
+
+	// Search for a solution, returning TetravexSolver.SOLVED or NO_SOLUTION
+	// (or CANCELLED if cancel was called)
+	public int solve()
+	{
+		int numSolutions = countSolutions(1, 0);
+		if (numSolutions < 0) return numSolutions;
+		return (numSolutions > 0) ? TetravexSolver.SOLVED : TetravexSolver.NO_SOLUTION;
+	}
+
+	// Count solutions, as TetravexSolver.countSolutions does. Blocks until the
+	// search is over. Returns TetravexSolver.CANCELLED if cancel was called.
+	public int countSolutions(final int maxSolutions, final long deadline)
+	{
+		long startTime = System.nanoTime();
+		mSolutionsFound.set(0);
+		mNodeCount.set(0);
+		mTimedOut = false;
+		mSolution = null;
+
+		// Cut the tree until there are enough subtrees to go around
+		TetravexSolver splitter = createSolver();
+		List<int []> subtrees = null;
+		for (int depth=1; depth<=MAX_SPLIT_DEPTH; depth++)
+		{
+			subtrees = splitter.listSubtrees(depth);
+			mNodeCount.addAndGet(splitter.getNodeCount());
+			if (subtrees.isEmpty() || subtrees.size() >= mNumThreads*SUBTREES_PER_THREAD) break;
+		}
+
+		final ConcurrentLinkedQueue<int []> queue = new ConcurrentLinkedQueue<int []>(subtrees);
+		ExecutorService executor = Executors.newFixedThreadPool(mNumThreads);
+		for (int i=0; i<mNumThreads; i++)
+		{
+			executor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					searchSubtrees(queue, maxSolutions, deadline);
+				}
+			});
+		}
+
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			// Stop the workers, and let the caller see the interrupt
+			mCancelFlag.set(true);
+			Thread.currentThread().interrupt();
+		}
+
+		mElapsedNanos = System.nanoTime() - startTime;
+
+		int numSolutions = mSolutionsFound.get();
+		int result;
+		if (numSolutions >= maxSolutions) result = maxSolutions;
+		else if (mTimedOut) result = TetravexSolver.TIMED_OUT;
+		else if (mCancelFlag.get()) result = TetravexSolver.CANCELLED;
+		else result = numSolutions;
+
+		// Ready for the next search
+		mCancelFlag.set(false);
+		return result;
+	}
+
+	// Body of each worker thread
+	private void searchSubtrees(ConcurrentLinkedQueue<int []> queue, int maxSolutions, long deadline)
+	{
+		TetravexSolver solver = createSolver();
+
+		while (!mCancelFlag.get())
+		{
+			int [] path = queue.poll();
+			if (path == null) break;
+
+			int numSolutions = solver.countSubtreeSolutions(path, maxSolutions - mSolutionsFound.get(), deadline);
+			mNodeCount.addAndGet(solver.getNodeCount());
+
+			if (numSolutions == TetravexSolver.TIMED_OUT)
+			{
+				mTimedOut = true;
+				mCancelFlag.set(true);
+			}
+			else if (numSolutions > 0)
+			{
+				recordSolution(solver);
+				if (mSolutionsFound.addAndGet(numSolutions) >= maxSolutions) mCancelFlag.set(true);
+			}
+		}
+	}
+
+	private synchronized void recordSolution(TetravexSolver solver)
+	{
+		if (mSolution != null) return;
+
+		mSolution = new Tetravex.Tile[mSize][mSize];
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++)
+			{
+				mSolution[x][y] = solver.getSolutionTile(x, y);
+			}
+		}
+	}
+
+	// Stop a search running on another thread, or the next one if none is
+	// running. It returns soon after with TetravexSolver.CANCELLED.
+	public void cancel()
+	{
+		mCancelFlag.set(true);
+	}
+
+	// Getter for the first solution found
+	public synchronized Tetravex.Tile getSolutionTile(int x, int y)
+	{
+		if (mSolution == null) return null;
+		return new Tetravex.Tile(mSolution[x][y]);
+	}
+
+	// Getters for search statistics, totaled over all threads
+	public long getNodeCount()
+	{
+		return mNodeCount.get();
+	}
+
+	public long getElapsedNanos()
+	{
+		return mElapsedNanos;
+	}
+}
@@ -0,0 +1,896 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Backtracking solver for Tetravex puzzles. Given the tiles of a puzzle and
+// the tiles already placed on the board, it searches for a way to fill the
+// remaining grid squares.
+//
+// Sets of tiles are stored as bitsets over tile ids (one bit per tile, packed
+// into longs). For every side and edge value we precompute the set of tiles
+// with that value on that side, so the tiles that fit a grid square are just
+// the available tiles AND'ed with one precomputed set per placed neighbor.
+// The search always fills the empty square with the fewest candidates next.
+// All search state is allocated up front - the search loop does not allocate.
+//
+// With an empty board, the search does not start in a corner. Instead, it
+// puts one tile (the one with the fewest possible neighbors) in the middle of
+// a virtual grid of (2*size-1) squares per side, and grows the solution
+// around it. The real board is wherever the placed tiles end up. Squares just
+// outside the placed tiles have an extra option besides their candidates:
+// "close" that side, meaning the board ends there. Tiles with rare edges thus
+// constrain the search from the start rather than only when they are reached.
+//
+// Besides checking neighbors, the search uses counting arguments to cut off
+// dead ends early:
+// 1) Each empty square next to placed tiles needs its own tile, so for every
+//    side and value, the squares requiring that value on that side cannot
+//    outnumber the available tiles that have it.
+// 2) Between two adjacent rows, each bottom edge of the upper row matches a
+//    top edge of the lower row, so for each value v we need
+//    max(placed bottoms v above, placed tops v below) tiles in each row.
+//    Summed over v, this cannot exceed the row length. Same for columns.
+// 3) Every top edge below the first row matches a bottom edge above the last
+//    row. So for each value v, (tiles with top v) - (tiles with bottom v) is
+//    equal to (first row tiles with top v) - (last row tiles with bottom v),
+//    and similarly for left/right and the first/last columns. This limits
+//    which tiles can be on the borders of the board, which otherwise is only
+//    discovered once the tiles run into the board edge.
+public class TetravexSolver {
+	// Results of a search
+	public static final int NO_SOLUTION = 0;
+	public static final int SOLVED = 1;
+	public static final int TIMED_OUT = -1;
+	public static final int CANCELLED = -2;
+
+	// How often (in nodes) the search checks its deadline and cancel flag
+	private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+	// Tile sides, used to index the edge index and the counts below
+	private static final int NO_SIDE = -1;
+	private static final int TOP = 0;
+	private static final int LEFT = 1;
+	private static final int RIGHT = 2;
+	private static final int BOTTOM = 3;
+
+	// Indices into the bounds array. MIN/MAX are the bounding box of the
+	// placed tiles, and LIMIT_MIN/LIMIT_MAX the range the board may occupy.
+	private static final int MIN_X = 0;
+	private static final int MAX_X = 1;
+	private static final int MIN_Y = 2;
+	private static final int MAX_Y = 3;
+	private static final int LIMIT_MIN_X = 4;
+	private static final int LIMIT_MAX_X = 5;
+	private static final int LIMIT_MIN_Y = 6;
+	private static final int LIMIT_MAX_Y = 7;
+	private static final int NUM_BOUNDS = 8;
+
+	// Puzzle parameters
+	private final int mSize;
+	private final int mMaxValue;
+	private final int mNumTiles;
+	private final int mWords; // Number of longs in a tile bitset
+
+	// Tile edges, indexed by tile id. Internally, tiles are sorted so that
+	// tiles with the fewest possible neighbors have the lowest ids and are
+	// tried first. mTileIds maps them back to the order given by the caller.
+	private final int [] mTop;
+	private final int [] mLeft;
+	private final int [] mRight;
+	private final int [] mBottom;
+	private final int [] mTileIds;
+
+	// Bitset of tiles having a given value on a given side. The set for side s
+	// and value v starts at ((s * mMaxValue) + v) * mWords.
+	private final long [] mEdgeIndex;
+
+	// Puzzles may contain identical tiles. Trying more than one of them in the
+	// same square is wasted effort, so a tile is skipped while an identical
+	// tile with a smaller id (stored here as a bitset) is still available.
+	private final long [] mEarlierTwins;
+	private final boolean [] mHasTwin;
+	private final boolean [] mHasEarlierTwin;
+
+	// Current position. Grid squares ("cells") of the virtual grid are
+	// numbered x*mGridWidth + y, to match the [x][y] layout of the model.
+	private final int mGridWidth;
+	private final int [] mBoard; // Tile id in each cell, -1 if empty
+	private final int [] mBounds;
+	private final long [] mAvailable; // Tiles not yet on the board
+	private int mNumAvailable;
+
+	// Counts for the checks described above, indexed by side*mMaxValue + value:
+	// - Available tiles with each value on each side (the "supply")
+	// - Empty squares requiring each value on each side (the "demand")
+	// - For the TOP and LEFT sides only, the number of tiles with the value on
+	//   that side minus the number with it on the opposite side
+	private final int [] mSupply;
+	private final int [] mDemand;
+	private final int [] mExcess;
+
+	// Per row (column) and value, the number of placed tiles with that value
+	// on the bottom (right) and on the top (left) side
+	private final int [] mRowBottom;
+	private final int [] mRowTop;
+	private final int [] mColumnRight;
+	private final int [] mColumnLeft;
+
+	// Search stacks, one entry per search depth
+	private final int [] mDepthCell; // Cell being filled, -1 for a dead end
+	private final int [] mDepthSide; // Side that may be closed instead
+	private final int [] mDepthOption; // Number of the option being tried
+	private final int [] mDepthBounds; // Bounds before filling the cell
+	private final long [] mDepthCandidates; // Candidates not yet tried
+	private final long [] mScratch;
+
+	// First and last solution found (internal tile id in each square)
+	private final int [] mSolution;
+	private final int [] mLastSolution;
+	private boolean mHasSolution;
+
+	// Statistics for the last search
+	private long mNodeCount;
+	private long mElapsedNanos;
+
+	// Support for splitting the search between threads (see listSubtrees)
+	private int [] mPath; // Path to the subtree to search, null for all
+	private List<int []> mSubtrees; // Subtrees being listed, null if not
+	private int mSplitDepth; // Depth of the subtrees being listed
+	private AtomicBoolean mCancelFlag; // Set by other threads to stop
+
+	// Create a solver for the given puzzle, starting from its current board
+	public TetravexSolver(Tetravex puzzle)
+	{
+		this(puzzle.getSize(), puzzle.getMaxValue(), getSolutionTiles(puzzle));
+
+		for (int x=0; x<mSize; x++)
+		{
+			for (int y=0; y<mSize; y++)
+			{
+				Tetravex.Tile t = puzzle.getBoardTile(x, y);
+				if (t != null) setBoardTile(t, x, y);
+			}
+		}
+	}
+
+	// Create a solver for an arbitrary set of tiles (size*size of them) and an
+	// empty board. All tile values must be less than maxValue.
+	public TetravexSolver(int size, int maxValue, Tetravex.Tile [] tiles)
+	{
+		if (tiles.length != size*size)
+			throw new IllegalArgumentException("Expected " + size*size + " tiles but got " + tiles.length);
+
+		mSize = size;
+		mMaxValue = maxValue;
+		mNumTiles = tiles.length;
+		mWords = (mNumTiles + 63) >>> 6;
+		mGridWidth = 2*size - 1;
+
+		mTop = new int[mNumTiles];
+		mLeft = new int[mNumTiles];
+		mRight = new int[mNumTiles];
+		mBottom = new int[mNumTiles];
+		mEdgeIndex = new long[4 * maxValue * mWords];
+		mEarlierTwins = new long[mNumTiles * mWords];
+		mHasTwin = new boolean[mNumTiles];
+		mHasEarlierTwin = new boolean[mNumTiles];
+
+		mBoard = new int[mGridWidth * mGridWidth];
+		mBounds = new int[NUM_BOUNDS];
+		mAvailable = new long[mWords];
+		mSupply = new int[4 * maxValue];
+		mDemand = new int[4 * maxValue];
+		mExcess = new int[4 * maxValue];
+		mRowBottom = new int[mGridWidth * maxValue];
+		mRowTop = new int[mGridWidth * maxValue];
+		mColumnRight = new int[mGridWidth * maxValue];
+		mColumnLeft = new int[mGridWidth * maxValue];
+
+		// Side closings add one depth each on top of one per tile
+		int maxDepth = mNumTiles + 4;
+		mDepthCell = new int[maxDepth];
+		mDepthSide = new int[maxDepth];
+		mDepthOption = new int[maxDepth];
+		mDepthBounds = new int[maxDepth * NUM_BOUNDS];
+		mDepthCandidates = new long[maxDepth * mWords];
+		mScratch = new long[mWords];
+		mSolution = new int[mNumTiles];
+		mLastSolution = new int[mNumTiles];
+
+		for (int i=0; i<mNumTiles; i++)
+		{
+			Tetravex.Tile tile = tiles[i];
+			mSupply[TOP*maxValue + checkValue(tile.top)]++;
+			mSupply[LEFT*maxValue + checkValue(tile.left)]++;
+			mSupply[RIGHT*maxValue + checkValue(tile.right)]++;
+			mSupply[BOTTOM*maxValue + checkValue(tile.bottom)]++;
+		}
+
+		mTileIds = sortByNeighbors(tiles);
+
+		for (int t=0; t<mNumTiles; t++)
+		{
+			Tetravex.Tile tile = tiles[mTileIds[t]];
+			mTop[t] = tile.top;
+			mLeft[t] = tile.left;
+			mRight[t] = tile.right;
+			mBottom[t] = tile.bottom;
+
+			addToSet(mEdgeIndex, edgeIndexOffset(TOP, mTop[t]), t);
+			addToSet(mEdgeIndex, edgeIndexOffset(LEFT, mLeft[t]), t);
+			addToSet(mEdgeIndex, edgeIndexOffset(RIGHT, mRight[t]), t);
+			addToSet(mEdgeIndex, edgeIndexOffset(BOTTOM, mBottom[t]), t);
+			addToSet(mAvailable, 0, t);
+
+			mExcess[TOP*maxValue + mTop[t]]++;
+			mExcess[TOP*maxValue + mBottom[t]]--;
+			mExcess[LEFT*maxValue + mLeft[t]]++;
+			mExcess[LEFT*maxValue + mRight[t]]--;
+
+			for (int u=0; u<t; u++)
+			{
+				if (mTop[u] == mTop[t] && mLeft[u] == mLeft[t] &&
+					mRight[u] == mRight[t] && mBottom[u] == mBottom[t])
+				{
+					addToSet(mEarlierTwins, t * mWords, u);
+					mHasEarlierTwin[t] = true;
+					mHasTwin[t] = true;
+					mHasTwin[u] = true;
+				}
+			}
+		}
+
+		mNumAvailable = mNumTiles;
+		Arrays.fill(mBoard, -1);
+	}
+
+	private static Tetravex.Tile [] getSolutionTiles(Tetravex puzzle)
+	{
+		int size = puzzle.getSize();
+		Tetravex.Tile [] tiles = new Tetravex.Tile[size*size];
+
+		for (int x=0; x<size; x++)
+		{
+			for (int y=0; y<size; y++)
+			{
+				tiles[x*size + y] = puzzle.getSolutionTile(x, y);
+			}
+		}
+
+		return tiles;
+	}
+
+	private int checkValue(int value)
+	{
+		if (value < 0 || value >= mMaxValue)
+			throw new IllegalArgumentException("Tile value " + value + " out of range");
+		return value;
+	}
+
+	// Order tiles by the number of tiles that could be placed next to them,
+	// counted from the supply of matching edges. Returns the caller's index of
+	// each tile in the new order. The sort is stable, so identical tiles keep
+	// their relative order.
+	private int [] sortByNeighbors(Tetravex.Tile [] tiles)
+	{
+		final int [] scores = new int[mNumTiles];
+		Integer [] order = new Integer[mNumTiles];
+
+		for (int i=0; i<mNumTiles; i++)
+		{
+			Tetravex.Tile tile = tiles[i];
+			scores[i] = mSupply[BOTTOM*mMaxValue + tile.top] +
+					mSupply[RIGHT*mMaxValue + tile.left] +
+					mSupply[LEFT*mMaxValue + tile.right] +
+					mSupply[TOP*mMaxValue + tile.bottom];
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return scores[a] - scores[b];
+			}
+		});
+
+		int [] tileIds = new int[mNumTiles];
+		for (int t=0; t<mNumTiles; t++) tileIds[t] = order[t];
+		return tileIds;
+	}
+
+	// Place a tile on the board before searching. One of the available tiles
+	// with the same edges is used. Returns false if the square is taken or no
+	// such tile is left.
+	public boolean setBoardTile(Tetravex.Tile tile, int x, int y)
+	{
+		int cell = x*mGridWidth + y;
+		if (mBoard[cell] >= 0) return false;
+
+		for (int t=0; t<mNumTiles; t++)
+		{
+			if (isAvailable(t) && mTop[t] == tile.top && mLeft[t] == tile.left &&
+				mRight[t] == tile.right && mBottom[t] == tile.bottom)
+			{
+				place(t, cell);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	// Search for a solution, returning SOLVED or NO_SOLUTION. The board is
+	// left as it was before the search, and the solution (if any) can be read
+	// with getSolutionTile.
+	public int solve()
+	{
+		return (search(1, 0) > 0) ? SOLVED : NO_SOLUTION;
+	}
+
+	// Count solutions, stopping as soon as maxSolutions are found. Searching
+	// also stops once System.nanoTime() passes deadline (unless it is 0), in
+	// which case TIMED_OUT is returned. Solutions that differ only by swapping
+	// identical tiles are counted once.
+	public int countSolutions(int maxSolutions, long deadline)
+	{
+		return search(maxSolutions, deadline);
+	}
+
+	// Getters for the first solution found. Tile ids are indices into the
+	// tiles given to the constructor (x*size + y when built from a puzzle).
+	public Tetravex.Tile getSolutionTile(int x, int y)
+	{
+		return TileCode.toTile(getSolutionTileCode(x, y));
+	}
+
+	public int getSolutionTileCode(int x, int y)
+	{
+		if (!mHasSolution) return TileCode.EMPTY;
+		return getTileCode(mSolution[x*mSize + y]);
+	}
+
+	// Getters for the last solution found, which differs from the first if
+	// countSolutions found more than one
+	public Tetravex.Tile getLastSolutionTile(int x, int y)
+	{
+		return TileCode.toTile(getLastSolutionTileCode(x, y));
+	}
+
+	public int getLastSolutionTileCode(int x, int y)
+	{
+		if (!mHasSolution) return TileCode.EMPTY;
+		return getTileCode(mLastSolution[x*mSize + y]);
+	}
+
+	private int getTileCode(int t)
+	{
+		return TileCode.make(mTop[t], mLeft[t], mRight[t], mBottom[t]);
+	}
+
+	public int getSolutionTileId(int x, int y)
+	{
+		if (!mHasSolution) return -1;
+		return mTileIds[mSolution[x*mSize + y]];
+	}
+
+	// Getters for search statistics
+	public long getNodeCount()
+	{
+		return mNodeCount;
+	}
+
+	public long getElapsedNanos()
+	{
+		return mElapsedNanos;
+	}
+
+	// Support for TetravexParallelSolver, which splits the search between
+	// threads. The search tree is cut at the given depth into subtrees, which
+	// are identified by the path to their root: the number of the option
+	// taken at each depth, counting candidate tiles in id order and then
+	// closing the side. Paths to solutions above that depth are included.
+	// Solvers built from the same tiles and board agree on the paths.
+	List<int []> listSubtrees(int depth)
+	{
+		mSubtrees = new ArrayList<int []>();
+		mSplitDepth = depth;
+		search(Integer.MAX_VALUE, 0);
+
+		List<int []> subtrees = mSubtrees;
+		mSubtrees = null;
+		return subtrees;
+	}
+
+	// Like countSolutions, but only for the subtree with the given path
+	int countSubtreeSolutions(int [] path, int maxSolutions, long deadline)
+	{
+		mPath = path;
+		int numSolutions = search(maxSolutions, deadline);
+		mPath = null;
+		return numSolutions;
+	}
+
+	// Searches return CANCELLED soon after this flag is set
+	void setCancelFlag(AtomicBoolean cancelFlag)
+	{
+		mCancelFlag = cancelFlag;
+	}
+
+	// Search until maxSolutions solutions are found, the search space is
+	// exhausted or the search is stopped, and return the number of solutions
+	// found (TIMED_OUT or CANCELLED if stopped).
+	private int search(int maxSolutions, long deadline)
+	{
+		long startTime = System.nanoTime();
+		int solutionsFound = 0;
+		int seedCell = -1;
+		mNodeCount = 0;
+		mHasSolution = false;
+
+		int seed = (mNumAvailable == mNumTiles) ? findSeed() : -1;
+		if (seed >= 0)
+		{
+			// Grow the board around the seed, which may end up anywhere on it
+			seedCell = (mSize-1)*mGridWidth + (mSize-1);
+			mBounds[MIN_X] = mBounds[MAX_X] = mBounds[MIN_Y] = mBounds[MAX_Y] = mSize-1;
+			mBounds[LIMIT_MIN_X] = mBounds[LIMIT_MIN_Y] = 0;
+			mBounds[LIMIT_MAX_X] = mBounds[LIMIT_MAX_Y] = mGridWidth-1;
+			place(seed, seedCell);
+		}
+		else
+		{
+			// The board is fixed at the top left of the grid. The bounding box
+			// starts out inverted and grows with the tiles placed.
+			mBounds[MIN_X] = mBounds[MIN_Y] = mSize-1;
+			mBounds[MAX_X] = mBounds[MAX_Y] = 0;
+			mBounds[LIMIT_MIN_X] = mBounds[LIMIT_MIN_Y] = 0;
+			mBounds[LIMIT_MAX_X] = mBounds[LIMIT_MAX_Y] = mSize-1;
+			for (int cell=0; cell<mBoard.length; cell++)
+			{
+				if (mBoard[cell] >= 0) updateBounds(cell);
+			}
+		}
+
+		int depth = -1;
+		if (mSubtrees != null && mNumAvailable == 0) addSubtree(depth);
+		else if (mNumAvailable == 0) solutionsFound += recordSolution();
+		else selectCell(depth = 0);
+
+		while (depth >= 0)
+		{
+			undo(depth);
+			boolean taken = takeNextOption(depth);
+
+			// Within the path, only the option on the path is taken
+			if (mPath != null && depth < mPath.length)
+			{
+				while (taken && mDepthOption[depth] < mPath[depth])
+				{
+					undo(depth);
+					taken = takeNextOption(depth);
+				}
+				if (taken && mDepthOption[depth] > mPath[depth])
+				{
+					undo(depth);
+					taken = false;
+				}
+			}
+
+			if (!taken)
+			{
+				depth--;
+				continue;
+			}
+
+			mNodeCount++;
+			if (mNodeCount % DEADLINE_CHECK_INTERVAL == 0)
+			{
+				if (deadline != 0 && System.nanoTime() - deadline > 0)
+				{
+					solutionsFound = TIMED_OUT;
+					break;
+				}
+				if (mCancelFlag != null && mCancelFlag.get())
+				{
+					solutionsFound = CANCELLED;
+					break;
+				}
+			}
+
+			if (mSubtrees != null && (mNumAvailable == 0 || depth+1 == mSplitDepth)) addSubtree(depth);
+			else if (mNumAvailable > 0) selectCell(++depth);
+			else
+			{
+				solutionsFound += recordSolution();
+				if (solutionsFound >= maxSolutions) break;
+			}
+		}
+
+		// Restore the board to its state before the search
+		for (; depth >= 0; depth--) undo(depth);
+		if (seedCell >= 0) unplace(seedCell);
+
+		mElapsedNanos = System.nanoTime() - startTime;
+		return solutionsFound;
+	}
+
+	// Choose the tile to grow the board from: the one with the fewest
+	// possible neighbors, which has the lowest id. Tiles with an identical
+	// twin are passed over, since each solution would be found once per copy
+	// of the tile in the seed square. Returns -1 if all tiles have twins.
+	private int findSeed()
+	{
+		for (int t=0; t<mNumTiles; t++)
+		{
+			if (!mHasTwin[t]) return t;
+		}
+		return -1;
+	}
+
+	// Set up the given depth: choose the next cell to fill and its candidates.
+	// If the position is found to be a dead end, no candidates are set.
+	private void selectCell(int depth)
+	{
+		System.arraycopy(mBounds, 0, mDepthBounds, depth*NUM_BOUNDS, NUM_BOUNDS);
+		Arrays.fill(mDepthCandidates, depth*mWords, (depth+1)*mWords, 0);
+		mDepthCell[depth] = -1;
+		mDepthSide[depth] = NO_SIDE;
+		mDepthOption[depth] = -1;
+
+		// Squares that the board may still cover
+		int firstX = Math.max(mBounds[LIMIT_MIN_X], mBounds[MAX_X] - mSize+1);
+		int lastX = Math.min(mBounds[LIMIT_MAX_X], mBounds[MIN_X] + mSize-1);
+		int firstY = Math.max(mBounds[LIMIT_MIN_Y], mBounds[MAX_Y] - mSize+1);
+		int lastY = Math.min(mBounds[LIMIT_MAX_Y], mBounds[MIN_Y] + mSize-1);
+		if (lastX - firstX + 1 < mSize || lastY - firstY + 1 < mSize) return;
+
+		// Squares that must be filled. If the board position is known in a
+		// direction, that is all of them, otherwise those in the bounding box.
+		boolean fixedX = (lastX - firstX + 1 == mSize);
+		boolean fixedY = (lastY - firstY + 1 == mSize);
+		int fillFirstX = fixedX ? firstX : mBounds[MIN_X];
+		int fillLastX = fixedX ? lastX : mBounds[MAX_X];
+		int fillFirstY = fixedY ? firstY : mBounds[MIN_Y];
+		int fillLastY = fixedY ? lastY : mBounds[MAX_Y];
+
+		int bestCount = Integer.MAX_VALUE;
+		int bestNeighbors = -1;
+		Arrays.fill(mDemand, 0);
+
+		search:
+		for (int x=firstX; x<=lastX; x++)
+		{
+			boolean insideX = (x >= fillFirstX && x <= fillLastX);
+			for (int y=firstY; y<=lastY; y++)
+			{
+				int cell = x*mGridWidth + y;
+				if (mBoard[cell] >= 0) continue;
+
+				// Only squares right next to the bounding box may be chosen
+				// outside of it. Filling them is optional.
+				boolean insideY = (y >= fillFirstY && y <= fillLastY);
+				int side = NO_SIDE;
+				if (!insideX || !insideY)
+				{
+					if (insideY && x == fillFirstX-1) side = LEFT;
+					else if (insideY && x == fillLastX+1) side = RIGHT;
+					else if (insideX && y == fillFirstY-1) side = TOP;
+					else if (insideX && y == fillLastY+1) side = BOTTOM;
+					else continue;
+				}
+
+				int neighbors = computeCandidates(cell, mScratch, side == NO_SIDE);
+				int count = (neighbors == 0) ? mNumAvailable : countSet(mScratch);
+				if (side != NO_SIDE) count++;
+
+				// Prefer the fewest options, then the most placed neighbors
+				if (count < bestCount || (count == bestCount && neighbors > bestNeighbors))
+				{
+					bestCount = count;
+					bestNeighbors = neighbors;
+					mDepthCell[depth] = cell;
+					mDepthSide[depth] = side;
+					System.arraycopy(mScratch, 0, mDepthCandidates, depth*mWords, mWords);
+					if (count == 0) break search;
+				}
+			}
+		}
+
+		// Border checks only apply once the first (last) line is known
+		if (!demandIsFeasible() ||
+			!cutsAreFeasible(mRowBottom, mRowTop, fillFirstY, fillLastY) ||
+			!cutsAreFeasible(mColumnRight, mColumnLeft, fillFirstX, fillLastX) ||
+			!bordersAreFeasible(TOP, BOTTOM, mRowTop, mRowBottom,
+				(firstY == mBounds[MIN_Y]) ? firstY : -1, (lastY == mBounds[MAX_Y]) ? lastY : -1) ||
+			!bordersAreFeasible(LEFT, RIGHT, mColumnLeft, mColumnRight,
+				(firstX == mBounds[MIN_X]) ? firstX : -1, (lastX == mBounds[MAX_X]) ? lastX : -1))
+		{
+			Arrays.fill(mDepthCandidates, depth*mWords, (depth+1)*mWords, 0);
+			mDepthSide[depth] = NO_SIDE;
+		}
+	}
+
+	// Store the available tiles that fit the given cell in out and return the
+	// number of placed neighbors. If mustFill is set, the requirements of the
+	// cell are added to the demand counts.
+	private int computeCandidates(int cell, long [] out, boolean mustFill)
+	{
+		int x = cell / mGridWidth;
+		int y = cell - x*mGridWidth;
+		int neighbors = 0;
+
+		System.arraycopy(mAvailable, 0, out, 0, mWords);
+		if (y > 0 && mBoard[cell-1] >= 0)
+		{
+			neighbors++;
+			addRequirement(out, TOP, mBottom[mBoard[cell-1]], mustFill);
+		}
+		if (x > 0 && mBoard[cell-mGridWidth] >= 0)
+		{
+			neighbors++;
+			addRequirement(out, LEFT, mRight[mBoard[cell-mGridWidth]], mustFill);
+		}
+		if (x < mGridWidth-1 && mBoard[cell+mGridWidth] >= 0)
+		{
+			neighbors++;
+			addRequirement(out, RIGHT, mLeft[mBoard[cell+mGridWidth]], mustFill);
+		}
+		if (y < mGridWidth-1 && mBoard[cell+1] >= 0)
+		{
+			neighbors++;
+			addRequirement(out, BOTTOM, mTop[mBoard[cell+1]], mustFill);
+		}
+
+		return neighbors;
+	}
+
+	private void addRequirement(long [] candidates, int side, int value, boolean mustFill)
+	{
+		int offset = edgeIndexOffset(side, value);
+		for (int w=0; w<mWords; w++) candidates[w] &= mEdgeIndex[offset+w];
+		if (mustFill) mDemand[side*mMaxValue + value]++;
+	}
+
+	// Check 1) - enough tiles for the squares next to placed tiles
+	private boolean demandIsFeasible()
+	{
+		for (int i=0; i<mDemand.length; i++)
+		{
+			if (mDemand[i] > mSupply[i]) return false;
+		}
+		return true;
+	}
+
+	// Check 2) - every pair of adjacent lines between first and last. Counts
+	// for the line before a cut are in before, for the line after in after.
+	private boolean cutsAreFeasible(int [] before, int [] after, int first, int last)
+	{
+		for (int line=first; line<last; line++)
+		{
+			int total = 0;
+			int b = line*mMaxValue;
+			int a = b + mMaxValue;
+			for (int v=0; v<mMaxValue; v++) total += Math.max(before[b+v], after[a+v]);
+			if (total > mSize) return false;
+		}
+		return true;
+	}
+
+	// Check 3) - the tiles needed on the first and last line, which are -1 if
+	// not yet known. Each border needs at least the tiles already placed on it
+	// and, per value, the first line must exceed the last by the excess.
+	private boolean bordersAreFeasible(int firstSide, int lastSide, int [] firstCounts, int [] lastCounts,
+			int firstLine, int lastLine)
+	{
+		int total = 0;
+
+		for (int v=0; v<mMaxValue; v++)
+		{
+			int first = (firstLine >= 0) ? firstCounts[firstLine*mMaxValue + v] : 0;
+			int last = (lastLine >= 0) ? lastCounts[lastLine*mMaxValue + v] : 0;
+			int excess = mExcess[firstSide*mMaxValue + v];
+			int neededFirst = Math.max(first, last + excess);
+			int neededLast = neededFirst - excess;
+
+			if (firstLine >= 0 && neededFirst - first > mSupply[firstSide*mMaxValue + v]) return false;
+			if (lastLine >= 0 && neededLast - last > mSupply[lastSide*mMaxValue + v]) return false;
+			total += neededFirst;
+		}
+
+		return total <= mSize;
+	}
+
+	// End the board at the current edge of the bounding box
+	private void closeSide(int side)
+	{
+		switch (side)
+		{
+		case TOP:
+			mBounds[LIMIT_MIN_Y] = mBounds[MIN_Y];
+			break;
+		case LEFT:
+			mBounds[LIMIT_MIN_X] = mBounds[MIN_X];
+			break;
+		case RIGHT:
+			mBounds[LIMIT_MAX_X] = mBounds[MAX_X];
+			break;
+		case BOTTOM:
+			mBounds[LIMIT_MAX_Y] = mBounds[MAX_Y];
+			break;
+		}
+	}
+
+	// Take the next option at the given depth - place the next candidate or,
+	// once there are none left, close the side. Returns false if there are no
+	// options left.
+	private boolean takeNextOption(int depth)
+	{
+		int t = nextCandidate(depth);
+		if (t >= 0) place(t, mDepthCell[depth]);
+		else if (mDepthSide[depth] != NO_SIDE)
+		{
+			closeSide(mDepthSide[depth]);
+			mDepthSide[depth] = NO_SIDE;
+		}
+		else return false;
+
+		mDepthOption[depth]++;
+		return true;
+	}
+
+	// Take back whatever was done at the given depth
+	private void undo(int depth)
+	{
+		int cell = mDepthCell[depth];
+		if (cell >= 0 && mBoard[cell] >= 0) unplace(cell);
+		System.arraycopy(mDepthBounds, depth*NUM_BOUNDS, mBounds, 0, NUM_BOUNDS);
+	}
+
+	// Remove and return the next untried candidate at the given depth, or -1
+	// if there are none left
+	private int nextCandidate(int depth)
+	{
+		int base = depth*mWords;
+
+		for (int w=0; w<mWords; w++)
+		{
+			long bits = mDepthCandidates[base+w];
+			while (bits != 0)
+			{
+				long lowestBit = bits & -bits;
+				bits ^= lowestBit;
+				int t = (w << 6) + Long.numberOfTrailingZeros(lowestBit);
+				if (mHasEarlierTwin[t] && earlierTwinIsAvailable(t)) continue;
+
+				mDepthCandidates[base+w] = bits;
+				return t;
+			}
+			mDepthCandidates[base+w] = 0;
+		}
+
+		return -1;
+	}
+
+	private void place(int t, int cell)
+	{
+		mBoard[cell] = t;
+		mAvailable[t >>> 6] &= ~(1L << t);
+		mNumAvailable--;
+		updateBounds(cell);
+		addToCounts(t, cell, 1);
+	}
+
+	private void unplace(int cell)
+	{
+		int t = mBoard[cell];
+		mBoard[cell] = -1;
+		mAvailable[t >>> 6] |= 1L << t;
+		mNumAvailable++;
+		addToCounts(t, cell, -1);
+	}
+
+	private void updateBounds(int cell)
+	{
+		int x = cell / mGridWidth;
+		int y = cell - x*mGridWidth;
+
+		if (x < mBounds[MIN_X]) mBounds[MIN_X] = x;
+		if (x > mBounds[MAX_X]) mBounds[MAX_X] = x;
+		if (y < mBounds[MIN_Y]) mBounds[MIN_Y] = y;
+		if (y > mBounds[MAX_Y]) mBounds[MAX_Y] = y;
+	}
+
+	// Update supply and row/column counts when tile t enters (amount 1) or
+	// leaves (amount -1) the given cell
+	private void addToCounts(int t, int cell, int amount)
+	{
+		int x = cell / mGridWidth;
+		int y = cell - x*mGridWidth;
+
+		mSupply[TOP*mMaxValue + mTop[t]] -= amount;
+		mSupply[LEFT*mMaxValue + mLeft[t]] -= amount;
+		mSupply[RIGHT*mMaxValue + mRight[t]] -= amount;
+		mSupply[BOTTOM*mMaxValue + mBottom[t]] -= amount;
+
+		mRowBottom[y*mMaxValue + mBottom[t]] += amount;
+		mRowTop[y*mMaxValue + mTop[t]] += amount;
+		mColumnRight[x*mMaxValue + mRight[t]] += amount;
+		mColumnLeft[x*mMaxValue + mLeft[t]] += amount;
+	}
+
+	// Add the path to the current position (through the given depth) to the
+	// subtrees being listed
+	private void addSubtree(int depth)
+	{
+		mSubtrees.add(Arrays.copyOf(mDepthOption, depth+1));
+	}
+
+	// Copy the board, which starts at the top left of the bounding box
+	private int recordSolution()
+	{
+		for (int x=0; x<mSize; x++)
+		{
+			System.arraycopy(mBoard, (mBounds[MIN_X] + x)*mGridWidth + mBounds[MIN_Y], mLastSolution, x*mSize, mSize);
+		}
+		if (!mHasSolution) System.arraycopy(mLastSolution, 0, mSolution, 0, mNumTiles);
+		mHasSolution = true;
+		return 1;
+	}
+
+	// Bitset helpers
+	private int edgeIndexOffset(int side, int value)
+	{
+		return ((side * mMaxValue) + value) * mWords;
+	}
+
+	private boolean isAvailable(int t)
+	{
+		return (mAvailable[t >>> 6] & (1L << t)) != 0;
+	}
+
+	private boolean earlierTwinIsAvailable(int t)
+	{
+		int offset = t * mWords;
+		for (int w=0; w<mWords; w++)
+		{
+			if ((mEarlierTwins[offset+w] & mAvailable[w]) != 0) return true;
+		}
+		return false;
+	}
+
+	private int countSet(long [] set)
+	{
+		int count = 0;
+		for (int w=0; w<mWords; w++) count += Long.bitCount(set[w]);
+		return count;
+	}
+
+	private static void addToSet(long [] set, int offset, int t)
+	{
+		set[offset + (t >>> 6)] |= 1L << t;
+	}
+}
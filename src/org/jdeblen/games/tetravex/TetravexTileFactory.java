@@ -24,18 +24,47 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.util.LruCache;
 
 public class TetravexTileFactory {
-	private static final int MAX_VALUES = 10;
+	public static final int MAX_VALUES = 10;
+	
+	// Tiles are composited from an atlas of pre-rendered triangles (see
+	// TileAtlas), which is much cheaper than drawing their triangle paths
+	// when many tiles of one size are needed. buildColorTile still draws the
+	// paths, for comparison in TileRenderBenchmark.
+	private static TileAtlas atlas; // For the most recent tile size
+	
+	// Tile sides, e.g. indices into the array returned by buildTrianglePaths
+	static final int TOP = 0;
+	static final int LEFT = 1;
+	static final int RIGHT = 2;
+	static final int BOTTOM = 3;
+	static final float BORDER_WIDTH = 5; // In bitmap pixels
 	private static final Paint tileBorderPaint;
 	private static final Paint [] tilePaints;
 	
+	// Cache of tile bitmaps, keyed by tile and size (see cacheKey). Identical
+	// tiles share one bitmap, and bitmaps are reused across new puzzles and
+	// orientation changes whenever the size matches. Cached bitmaps are shared,
+	// so callers must not draw on or recycle them.
+	// The cache may use an eighth of the heap, which is plenty for a few
+	// boards' worth of tiles.
+	private static final int TILE_CACHE_MAX_BYTES = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+	private static final LruCache<Long, Bitmap> tileCache = new LruCache<Long, Bitmap>(TILE_CACHE_MAX_BYTES) {
+		@Override
+		protected int sizeOf(Long key, Bitmap tileBitmap)
+		{
+			return tileBitmap.getRowBytes() * tileBitmap.getHeight();
+		}
+	};
+	
 	static
 	{
 		tileBorderPaint = new Paint();
 		tileBorderPaint.setColor(Color.BLACK);
 		tileBorderPaint.setStyle(Paint.Style.STROKE);
-		tileBorderPaint.setStrokeWidth(5);
+		tileBorderPaint.setStrokeWidth(BORDER_WIDTH);
 		
 		tilePaints = new Paint[MAX_VALUES];
 		for (int i=0; i < MAX_VALUES; i++) tilePaints[i] = new Paint();
@@ -54,15 +83,113 @@ public class TetravexTileFactory {
 		for (Paint p : tilePaints) p.setStyle(Paint.Style.FILL);
 	}
 
-	public static Bitmap buildColorTile(Tetravex.Tile tile, int width, int height)
+	// Return the bitmap for a tile (given as a TileCode), from the cache if
+	// possible
+	public static Bitmap getColorTile(int tileCode, int width, int height)
 	{
-		float midpointX = width / 2f;
-		float midpointY = height / 2f;
+		Long key = cacheKey(tileCode, width, height);
+		Bitmap tileBitmap = tileCache.get(key);
+		
+		if (tileBitmap == null)
+		{
+			tileBitmap = buildAtlasTile(new Tetravex.Tile(tileCode), width, height);
+			tileCache.put(key, tileBitmap);
+		}
+		
+		return tileBitmap;
+	}
+	
+	// Tile codes take 32 bits, which leaves 16 bits each for the width and
+	// height
+	private static long cacheKey(int tileCode, int width, int height)
+	{
+		return ((long) tileCode << 32) | ((long) (width & 0xffff) << 16) | (height & 0xffff);
+	}
+	
+	// Cache statistics
+	public static int getCacheHitCount()
+	{
+		return tileCache.hitCount();
+	}
+	
+	public static int getCacheMissCount()
+	{
+		return tileCache.missCount();
+	}
+	
+	public static int getCacheEvictionCount()
+	{
+		return tileCache.evictionCount();
+	}
+	
+	public static int getCacheSizeBytes()
+	{
+		return tileCache.size();
+	}
+	
+	// Drop all cached bitmaps and the atlas, e.g. when memory is low
+	public static void clearCache()
+	{
+		tileCache.evictAll();
+		synchronized (TetravexTileFactory.class)
+		{
+			atlas = null;
+		}
+	}
+	
+	// Build a new bitmap for a tile from the atlas, bypassing the cache
+	public static Bitmap buildAtlasTile(Tetravex.Tile tile, int width, int height)
+	{
+		return getAtlas(width, height).buildTile(tile);
+	}
+	
+	// Return the atlas for the given tile size, rendering a new one if the
+	// size has changed
+	static synchronized TileAtlas getAtlas(int width, int height)
+	{
+		if (atlas == null || atlas.width != width || atlas.height != height)
+		{
+			atlas = new TileAtlas(width, height);
+		}
 		
+		return atlas;
+	}
+	
+	// Build a new bitmap for a tile from its triangle paths, bypassing the
+	// cache
+	public static Bitmap buildColorTile(Tetravex.Tile tile, int width, int height)
+	{
 		// Create bitmap, wrap in a temporary canvas for drawing
 		Bitmap tileBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
 		Canvas canvasForTile = new Canvas(tileBitmap);
 		
+		Path [] triangles = buildTrianglePaths(width, height);
+		Path topTriangle = triangles[TOP];
+		Path leftTriangle = triangles[LEFT];
+		Path rightTriangle = triangles[RIGHT];
+		Path bottomTriangle = triangles[BOTTOM];
+
+		// Draw triangles
+		canvasForTile.drawPath(topTriangle, tilePaints[tile.top]);
+		canvasForTile.drawPath(leftTriangle, tilePaints[tile.left]);
+		canvasForTile.drawPath(rightTriangle, tilePaints[tile.right]);
+		canvasForTile.drawPath(bottomTriangle, tilePaints[tile.bottom]);
+		
+		drawBorders(canvasForTile, triangles, width, height);
+		
+		return tileBitmap;
+	}
+	
+	static Paint getTilePaint(int value)
+	{
+		return tilePaints[value];
+	}
+	
+	static Path [] buildTrianglePaths(int width, int height)
+	{
+		float midpointX = width / 2f;
+		float midpointY = height / 2f;
+		
 		// Create triangle paths
 		Path topTriangle = new Path();
 		topTriangle.moveTo(0, 0);
@@ -83,25 +210,24 @@ public class TetravexTileFactory {
 		bottomTriangle.moveTo(0, (float) height);
 		bottomTriangle.lineTo(midpointX, midpointY);
 		bottomTriangle.lineTo((float) width, (float) height);
-
-		// Draw triangles
-		canvasForTile.drawPath(topTriangle, tilePaints[tile.top]);
-		canvasForTile.drawPath(leftTriangle, tilePaints[tile.left]);
-		canvasForTile.drawPath(rightTriangle, tilePaints[tile.right]);
-		canvasForTile.drawPath(bottomTriangle, tilePaints[tile.bottom]);
 		
+		Path [] triangles = new Path[4];
+		triangles[TOP] = topTriangle;
+		triangles[LEFT] = leftTriangle;
+		triangles[RIGHT] = rightTriangle;
+		triangles[BOTTOM] = bottomTriangle;
+		return triangles;
+	}
+	
+	static void drawBorders(Canvas canvasForTile, Path [] triangles, int width, int height)
+	{
 		// Draw triangle borders
-		canvasForTile.drawPath(topTriangle, tileBorderPaint);
-		canvasForTile.drawPath(leftTriangle, tileBorderPaint);
-		canvasForTile.drawPath(rightTriangle, tileBorderPaint);
-		canvasForTile.drawPath(bottomTriangle, tileBorderPaint);
+		for (Path triangle : triangles) canvasForTile.drawPath(triangle, tileBorderPaint);
 		
 		// Draw edge borders
 		canvasForTile.drawLine(0, 0, width, 0, tileBorderPaint);
 		canvasForTile.drawLine(0, 0, 0, height, tileBorderPaint);
 		canvasForTile.drawLine(width, 0, width, height, tileBorderPaint);
 		canvasForTile.drawLine(0, height, width, height, tileBorderPaint);
-		
-		return tileBitmap;
 	}
 }
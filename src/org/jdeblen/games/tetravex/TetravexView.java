@@ -19,25 +19,42 @@
 *********************************************************************/
 package org.jdeblen.games.tetravex;
 
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Arrays;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.os.SystemClock;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 
+// The board is laid out to fit the view: the grid on top and the scratch
+// area below. Tile positions are kept in this layout's coordinates (board
+// coordinates), whatever the zoom.
+//
+// Large boards can be zoomed with two fingers and panned with one finger on
+// an empty spot (or two). At zoom 1 the whole board fits the view. Tiles
+// outside the view are skipped, and only visible tiles hold bitmaps, built
+// for the current zoom, so memory use depends on the screen size rather
+// than the number of tiles.
 public class TetravexView extends View {
 	private static final float gridToScratchAreaRatio = 0.45f;
 	private static final float cushionBetweenGridAndTile = 0.05f;
+	
+	// Zooming in stops when this many tiles fit across the view
+	private static final float minTilesAcrossView = 3;
 
 	// Palette
 	private final Paint mGridAreaPaint;
 	private final Paint mScratchAreaPaint;
 	private final Paint mGridLinesPaint;
 	private final Paint mBitmapPaint;
+	private final Paint mSnapHighlightPaint;
 	
 	// Sound Effects
 	private static final int placeTileOnGridSoundEffect = R.raw.judge_gavel;
@@ -45,20 +62,81 @@ public class TetravexView extends View {
 	private static final int winSoundEffect = R.raw.computer_start_up;
 	
 	private final int mGridSize;
-	private float mTileWidth;
+	private float mTileWidth; // In board coordinates
 	private float mTileHeight;
-	private Bitmap [] mTiles;
-	private LinkedList<TilePosition> mTilePositions;
+	
+	// Viewport: the zoom, and the board coordinates at the view's upper left
+	// corner
+	private float mZoom = 1;
+	private float mMaxZoom = 1;
+	private float mViewX = 0;
+	private float mViewY = 0;
+	private final ScaleGestureDetector mScaleDetector;
+	private float mLastFocusX; // Focus of the pinch, for panning with it
+	private float mLastFocusY;
+	
+	// Panning with one finger
+	private boolean mPanning = false;
+	private float mLastTouchX;
+	private float mLastTouchY;
+	
+	// Bitmap of each tile, null if it is not visible or not built yet. All are
+	// built for mBitmapZoom, which catches up with the zoom once a pinch ends
+	// (until then they are stretched).
+	private Bitmap [] mTileBitmaps;
+	private float mBitmapZoom = 1;
+	private int mNumBitmapsFetched; // In this frame
+	private long mBitmapNanos; // Time taken fetching them, with frame stats on
+	
+	// Tiles drawn this frame, when tiles are drawn from triangles rather
+	// than bitmaps (see TileMesh); null when drawing bitmaps
+	private TileMesh mTileMesh = null;
+	
+	// Part of the board that is visible, and the part being redrawn, in
+	// board coordinates
+	private final RectF mVisibleRect = new RectF();
+	private final RectF mClipBoardRect = new RectF();
+	private final RectF mTileRect = new RectF(); // Scratch, for drawing
+	
+	// Tile positions, indexed by tile number (null until tiles are first
+	// drawn). Tiles not being dragged are also kept in a stacking order and
+	// a spatial hash, for drawing and finding touched tiles.
+	private TilePosition [] mTilePositions;
+	private final ZOrderList mZOrder;
+	private final TileSpatialHash mSpatialHash;
+	
+	// Scratch rectangles for invalidating and clipping (in view
+	// coordinates), so drawing and dragging do not allocate
+	private final Rect mDirtyRect = new Rect();
+	private final Rect mClipRect = new Rect();
 	
 	// Variables for tile dragging. Finger offsets record the touch position
-	// relative to the tile's upper left corner.
+	// relative to the tile's upper left corner, in board coordinates.
 	private TilePosition mTileBeingDragged;
 	private float mFingerOffsetX;
 	private float mFingerOffsetY;
+	
+	// Layer whose render thread draws the dragged tile, if enabled in the
+	// preferences, and whether it is drawing the current drag
+	private DragLayer mDragLayer = null;
+	private boolean mDragOnLayer = false;
+	
+	// Grid square the dragged tile would snap to if dropped now, highlighted
+	// while dragging. Not valid if mHovering is false.
+	private boolean mHovering = false;
+	private final gridCoordinates mHoverPosition = new gridCoordinates();
+	private final gridCoordinates mGridPosition = new gridCoordinates(); // Scratch
 
 	private TetravexController mController;
 	private boolean mPuzzleSolved = false;
 	
+	// Rendering measurements and their overlay, null unless turned on from
+	// the debug menu
+	private FrameStats mFrameStats = null;
+	private final Paint mOverlayPaint;
+	private final Paint mOverlayTextPaint;
+	private final Rect mOverlayRect = new Rect();
+	
 	// Nested class for storing tile positions
 	private class TilePosition
 	{
@@ -74,8 +152,10 @@ public class TetravexView extends View {
 	{
 		super(context);
 		mGridSize = puzzleSize;
-		mTiles = null;
-		mTilePositions = new LinkedList<TilePosition>();
+		mTileBitmaps = new Bitmap[puzzleSize*puzzleSize];
+		mTilePositions = null;
+		mZOrder = new ZOrderList(puzzleSize*puzzleSize);
+		mSpatialHash = new TileSpatialHash(puzzleSize*puzzleSize);
 		mTileBeingDragged = null;
 		mController = (TetravexController) context;
 		
@@ -89,6 +169,20 @@ public class TetravexView extends View {
 		mGridLinesPaint.setColor(getResources().getColor(R.color.gridLines));
 
 		mBitmapPaint = new Paint();
+		mBitmapPaint.setFilterBitmap(true); // For stretching while zooming
+		
+		mSnapHighlightPaint = new Paint();
+		mSnapHighlightPaint.setColor(getResources().getColor(R.color.snapHighlight));
+		
+		mOverlayPaint = new Paint();
+		mOverlayPaint.setColor(getResources().getColor(R.color.overlayBackground));
+		
+		mOverlayTextPaint = new Paint();
+		mOverlayTextPaint.setColor(getResources().getColor(R.color.overlayText));
+		mOverlayTextPaint.setTypeface(Typeface.MONOSPACE);
+		mOverlayTextPaint.setAntiAlias(true);
+		
+		mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
 		
 		setFocusable(true);
 		setFocusableInTouchMode(true);
@@ -99,131 +193,542 @@ public class TetravexView extends View {
 	{
 		mTileWidth = w / (float) mGridSize;
 		mTileHeight = h * gridToScratchAreaRatio / (float) mGridSize;
-		mTiles = null;
+		mMaxZoom = Math.max(1, Math.min(w / minTilesAcrossView / mTileWidth, h / minTilesAcrossView / mTileHeight));
+		if (oldw > 0 && oldh > 0)
+		{
+			mViewX = mViewX * w / oldw;
+			mViewY = mViewY * h / oldh;
+		}
+		clampViewport();
+		setBitmapZoom(mZoom);
+		setOverlayRect();
+		
+		// Tiles keep their places when the view is resized. Tiles on the grid
+		// snap to their squares, and the others are scaled with the view.
+		mSpatialHash.resize(w, h, mTileWidth, mTileHeight);
+		if (mTilePositions == null) return;
+		
+		for (TilePosition tileData : mTilePositions)
+		{
+			if (tileData.onGrid) placeTileOnGrid(tileData, tileData.gridX, tileData.gridY);
+			else if (oldw > 0 && oldh > 0)
+			{
+				tileData.x = tileData.x * w / oldw;
+				tileData.y = tileData.y * h / oldh;
+			}
+			
+			if (mZOrder.contains(tileData.tileNum)) mSpatialHash.insert(tileData.tileNum, tileData.x, tileData.y);
+		}
+		
+		// Drop any drag in progress where it is, off the grid
+		if (mTileBeingDragged != null)
+		{
+			addToFront(mTileBeingDragged);
+			mTileBeingDragged = null;
+			mHovering = false;
+			endLayerDrag();
+			mController.dropTileOffGrid();
+		}
 	}
 	
 	@Override
 	protected void onDraw(Canvas canvas)
 	{
-		// Draw background
+		long startTime = (mFrameStats != null) ? System.nanoTime() : 0;
+		if (mTilePositions == null) setInitialPositionOfTiles();
+		
+		drawBackground(canvas);
+		
+		if (mHovering)
+		{
+			canvas.drawRect(toViewX(mHoverPosition.x * mTileWidth), toViewY(mHoverPosition.y * mTileHeight),
+					toViewX((mHoverPosition.x + 1) * mTileWidth), toViewY((mHoverPosition.y + 1) * mTileHeight),
+					mSnapHighlightPaint);
+		}
+		
+		// Tiles out of view give up their bitmaps. While a tile is dragged,
+		// only the area around it is redrawn, so skip other tiles outside of
+		// that area too.
+		mVisibleRect.set(mViewX, mViewY, toBoardX(getWidth()), toBoardY(getHeight()));
+		canvas.getClipBounds(mClipRect);
+		mClipBoardRect.set(toBoardX(mClipRect.left), toBoardY(mClipRect.top),
+				toBoardX(mClipRect.right), toBoardY(mClipRect.bottom));
+		mNumBitmapsFetched = 0;
+		mBitmapNanos = 0;
+		if (mTileMesh != null) mTileMesh.reset(getTileWidth(), getTileHeight());
+		
+		for (int tileNum=mZOrder.getBack(); tileNum!=-1; tileNum=mZOrder.getAbove(tileNum))
+		{
+			TilePosition tileData = mTilePositions[tileNum];
+			if (!tileIntersects(tileData, mVisibleRect)) mTileBitmaps[tileNum] = null;
+			else if (tileIntersects(tileData, mClipBoardRect)) drawTile(canvas, tileData);
+		}
+		
+		if (mTileBeingDragged != null && !mDragOnLayer) drawTile(canvas, mTileBeingDragged);
+		if (mTileMesh != null) mTileMesh.draw(canvas);
+		
+		if (mNumBitmapsFetched > 0)
+		{
+			Tracer.tilesDrawn(mNumBitmapsFetched, TetravexTileFactory.getCacheHitCount(),
+					TetravexTileFactory.getCacheMissCount());
+		}
+		
+		if (mFrameStats != null)
+		{
+			if (mNumBitmapsFetched > 0) mFrameStats.tileBitmapTimes.recordNanos(mBitmapNanos);
+			mFrameStats.drawTimes.recordNanos(System.nanoTime() - startTime);
+			mFrameStats.frameDrawn(SystemClock.uptimeMillis());
+			drawOverlay(canvas);
+		}
+	}
+	
+	// Turn frame measurements and their overlay on (or off, with null)
+	public void setFrameStats(FrameStats frameStats)
+	{
+		mFrameStats = frameStats;
+		if (mDragLayer != null) mDragLayer.setFrameStats(frameStats);
+		invalidate();
+	}
+	
+	// Draw dragged tiles on the given layer, which must cover this view
+	public void setDragLayer(DragLayer dragLayer)
+	{
+		mDragLayer = dragLayer;
+		mDragLayer.setFrameStats(mFrameStats);
+	}
+	
+	// Hand the dragged tile back from the layer to this view
+	private void endLayerDrag()
+	{
+		if (!mDragOnLayer) return;
+		mDragLayer.endDrag();
+		mDragOnLayer = false;
+	}
+	
+	// The overlay covers the bottom of the view, one line per histogram plus
+	// half a line of margin above and below
+	private void setOverlayRect()
+	{
+		mOverlayTextPaint.setTextSize(Math.max(10, getWidth() / 40));
+		int lineHeight = (int) Math.ceil(mOverlayTextPaint.getFontSpacing());
+		mOverlayRect.set(0, getHeight() - (FrameStats.NUM_HISTOGRAMS + 1) * lineHeight, getWidth(), getHeight());
+	}
+	
+	private void drawOverlay(Canvas canvas)
+	{
+		canvas.drawRect(mOverlayRect, mOverlayPaint);
+		
+		float lineHeight = mOverlayTextPaint.getFontSpacing();
+		float y = mOverlayRect.top + lineHeight * 1.5f - mOverlayTextPaint.descent();
+		for (int i=0; i<FrameStats.NUM_HISTOGRAMS; i++)
+		{
+			canvas.drawText(mFrameStats.getSummary(i), lineHeight / 2, y, mOverlayTextPaint);
+			y += lineHeight;
+		}
+	}
+	
+	// Draw a tile, or add it to the tile mesh for drawing at the end of the
+	// frame
+	private void drawTile(Canvas canvas, TilePosition tileData)
+	{
+		mTileRect.set(toViewX(tileData.x), toViewY(tileData.y),
+				toViewX(tileData.x + mTileWidth), toViewY(tileData.y + mTileHeight));
+		
+		if (mTileMesh != null)
+		{
+			mTileMesh.addTile(mController.getTileCode(tileData.tileNum), mTileRect.left, mTileRect.top,
+					mTileRect.right, mTileRect.bottom);
+		}
+		else canvas.drawBitmap(getTileBitmap(tileData.tileNum), null, mTileRect, mBitmapPaint);
+	}
+	
+	// Draw tiles from triangles each frame instead of from bitmaps. Only a
+	// tile dragged on the drag layer then needs a bitmap.
+	public void setVectorMode(boolean vectorMode)
+	{
+		mTileMesh = vectorMode ? new TileMesh() : null;
+		Arrays.fill(mTileBitmaps, null);
+		invalidate();
+	}
+	
+	// Return a tile's bitmap, getting it from the controller if the tile has
+	// just come into view
+	private Bitmap getTileBitmap(int tileNum)
+	{
+		if (mTileBitmaps[tileNum] == null)
+		{
+			long fetchStartTime = (mFrameStats != null) ? System.nanoTime() : 0;
+			mTileBitmaps[tileNum] = mController.getTileBitmap(tileNum, getTileWidth(), getTileHeight());
+			if (mFrameStats != null) mBitmapNanos += System.nanoTime() - fetchStartTime;
+			mNumBitmapsFetched++;
+		}
+		
+		return mTileBitmaps[tileNum];
+	}
+	
+	// Rebuild the bitmaps of visible tiles for a new zoom
+	private void setBitmapZoom(float zoom)
+	{
+		mBitmapZoom = zoom;
+		Arrays.fill(mTileBitmaps, null);
+	}
+	
+	private boolean tileIntersects(TilePosition tileData, RectF rect)
+	{
+		return (tileData.x < rect.right) && (rect.left < tileData.x + mTileWidth) &&
+			(tileData.y < rect.bottom) && (rect.top < tileData.y + mTileHeight);
+	}
+	
+	// Fill the grid and scratch areas and draw the grid lines. These are
+	// drawn directly rather than kept in a bitmap, as they move with the
+	// viewport; only the visible grid lines are drawn.
+	private void drawBackground(Canvas canvas)
+	{
+		float gridBottom = toViewY(gridToScratchAreaRatio * getHeight());
+		float gridLeft = toViewX(0);
+		float gridRight = toViewX(getWidth());
+		
 		canvas.drawRect(0, 0, getWidth(), getHeight(), mScratchAreaPaint);
-		canvas.drawRect(0, 0, getWidth(), (int) gridToScratchAreaRatio*getHeight(), mGridAreaPaint);
+		canvas.drawRect(gridLeft, toViewY(0), gridRight, gridBottom, mGridAreaPaint);
 		
 		// Draw horizontal grid lines
 		for (int i=0; i<=mGridSize; i++)
 		{
-			canvas.drawLine(0, i*mTileHeight, getWidth(), i*mTileHeight, mGridLinesPaint);
+			float y = toViewY(i*mTileHeight);
+			if (y >= 0 && y <= getHeight()) canvas.drawLine(gridLeft, y, gridRight, y, mGridLinesPaint);
 		}
 		
 		// Draw vertical grid lines
 		for (int i=0; i<=mGridSize; i++)
 		{
-			canvas.drawLine(i*mTileWidth, 0, i*mTileWidth, gridToScratchAreaRatio*getHeight(), mGridLinesPaint);
+			float x = toViewX(i*mTileWidth);
+			if (x >= 0 && x <= getWidth()) canvas.drawLine(x, toViewY(0), x, gridBottom, mGridLinesPaint);
 		}
+	}
+	
+	// Conversions between board and view coordinates
+	private float toViewX(float boardX)
+	{
+		return (boardX - mViewX) * mZoom;
+	}
+	
+	private float toViewY(float boardY)
+	{
+		return (boardY - mViewY) * mZoom;
+	}
+	
+	private float toBoardX(float viewX)
+	{
+		return mViewX + viewX / mZoom;
+	}
+	
+	private float toBoardY(float viewY)
+	{
+		return mViewY + viewY / mZoom;
+	}
+	
+	// Keep the zoom in range and the viewport within the board
+	private void clampViewport()
+	{
+		mZoom = Math.max(1, Math.min(mMaxZoom, mZoom));
+		mViewX = Math.max(0, Math.min(getWidth() - getWidth() / mZoom, mViewX));
+		mViewY = Math.max(0, Math.min(getHeight() - getHeight() / mZoom, mViewY));
+	}
+	
+	// Move the viewport, redrawing if it actually moved (boards that fit the
+	// view at a readable size cannot be zoomed or panned)
+	private void setViewport(float zoom, float viewX, float viewY)
+	{
+		float oldZoom = mZoom;
+		float oldViewX = mViewX;
+		float oldViewY = mViewY;
 		
-		// Draw tiles
-		if (mTiles == null)
+		mZoom = zoom;
+		mViewX = viewX;
+		mViewY = viewY;
+		clampViewport();
+		if (mZoom != oldZoom || mViewX != oldViewX || mViewY != oldViewY) invalidate();
+	}
+	
+	// Move the viewport by the given distance in view coordinates
+	private void panBy(float dx, float dy)
+	{
+		setViewport(mZoom, mViewX - dx / mZoom, mViewY - dy / mZoom);
+	}
+	
+	// Pinch zooming, centered on the fingers. Moving both fingers pans.
+	private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener
+	{
+		@Override
+		public boolean onScaleBegin(ScaleGestureDetector detector)
 		{
-			mTiles = mController.getTileBitmaps((int) mTileWidth, (int) mTileHeight);
-			setInitialPositionOfTiles();
-			mTileBeingDragged = null;
+			mLastFocusX = detector.getFocusX();
+			mLastFocusY = detector.getFocusY();
+			return true;
 		}
 		
-		for (ListIterator<TilePosition> it = mTilePositions.listIterator(mTilePositions.size()); it.hasPrevious();)
+		@Override
+		public boolean onScale(ScaleGestureDetector detector)
 		{
-			TilePosition tileData = it.previous();
-			canvas.drawBitmap(mTiles[tileData.tileNum], tileData.x, tileData.y, mBitmapPaint);
+			// Pan with the fingers, then keep the board point under them in
+			// place while zooming
+			float focusX = detector.getFocusX();
+			float focusY = detector.getFocusY();
+			float boardX = toBoardX(mLastFocusX);
+			float boardY = toBoardY(mLastFocusY);
+			mLastFocusX = focusX;
+			mLastFocusY = focusY;
+			
+			float zoom = Math.max(1, Math.min(mMaxZoom, mZoom * detector.getScaleFactor()));
+			setViewport(zoom, boardX - focusX / zoom, boardY - focusY / zoom);
+			return true;
 		}
 		
+		@Override
+		public void onScaleEnd(ScaleGestureDetector detector)
+		{
+			if (mZoom != mBitmapZoom)
+			{
+				setBitmapZoom(mZoom);
+				invalidate();
+			}
+		}
+	}
+	
+	// Add a tile's current bounds to the dirty rectangle. Bounds are rounded
+	// outward, since tiles are drawn at fractional positions.
+	private void addTileToDirtyRect(TilePosition tileData)
+	{
+		addBoardRectToDirtyRect(tileData.x, tileData.y, tileData.x + mTileWidth, tileData.y + mTileHeight);
+	}
+	
+	private void addSquareToDirtyRect(int x, int y)
+	{
+		addBoardRectToDirtyRect(x * mTileWidth, y * mTileHeight, (x + 1) * mTileWidth, (y + 1) * mTileHeight);
+	}
+	
+	private void addBoardRectToDirtyRect(float left, float top, float right, float bottom)
+	{
+		mDirtyRect.union((int) Math.floor(toViewX(left)) - 1, (int) Math.floor(toViewY(top)) - 1,
+				(int) Math.ceil(toViewX(right)) + 1, (int) Math.ceil(toViewY(bottom)) + 1);
+	}
+	
+	// Move the snap highlight to wherever the dragged tile would snap to now
+	private void updateHover(TilePosition tileData)
+	{
+		boolean hovering = (tileData != null) && getGridCoordinates(tileData.x, tileData.y, mGridPosition);
+		if (hovering == mHovering && (!hovering ||
+				(mGridPosition.x == mHoverPosition.x && mGridPosition.y == mHoverPosition.y))) return;
+		
+		if (mHovering) addSquareToDirtyRect(mHoverPosition.x, mHoverPosition.y);
+		mHovering = hovering;
+		if (mHovering)
+		{
+			mHoverPosition.x = mGridPosition.x;
+			mHoverPosition.y = mGridPosition.y;
+			addSquareToDirtyRect(mHoverPosition.x, mHoverPosition.y);
+		}
+	}
+	
+	// Redraw only the dirty rectangle, and start a new one. The overlay is
+	// redrawn along with it, to keep its numbers current.
+	private void invalidateDirtyRect()
+	{
+		if (mFrameStats != null) mDirtyRect.union(mOverlayRect);
+		invalidate(mDirtyRect);
+		mDirtyRect.setEmpty();
+	}
+	
+	// Move tiles on behalf of the controller, e.g. for undo and redo
+	public void moveTileToGrid(int tileNum, int x, int y)
+	{
+		if (mTilePositions == null) return; // Tiles are placed when first drawn
+		
+		TilePosition tileData = startMovingTile(tileNum);
+		placeTileOnGrid(tileData, x, y);
+		addToFront(tileData);
+		invalidate();
+	}
+	
+	public void moveTileOffGrid(int tileNum)
+	{
+		if (mTilePositions == null) return;
+		
+		TilePosition tileData = startMovingTile(tileNum);
+		tileData.onGrid = false;
+		setScratchPosition(tileData);
+		addToFront(tileData);
+		invalidate();
+	}
+	
+	public void setPuzzleSolved(boolean solved)
+	{
+		mPuzzleSolved = solved;
+	}
+	
+	// Take a tile out of the stacking order so that it can be moved, ending
+	// any drag in progress
+	private TilePosition startMovingTile(int tileNum)
+	{
 		if (mTileBeingDragged != null)
 		{
-			canvas.drawBitmap(mTiles[mTileBeingDragged.tileNum], mTileBeingDragged.x, mTileBeingDragged.y, mBitmapPaint);
+			addToFront(mTileBeingDragged);
+			mTileBeingDragged = null;
+			updateHover(null);
+			mDirtyRect.setEmpty();
+			endLayerDrag();
+			mController.dropTileOffGrid();
 		}
+		
+		mZOrder.remove(tileNum);
+		mSpatialHash.remove(tileNum);
+		return mTilePositions[tileNum];
+	}
+	
+	// Size of tile bitmaps in pixels, for drawing tiles elsewhere
+	public int getTileWidth()
+	{
+		return Math.max(1, Math.round(mTileWidth * mBitmapZoom));
+	}
+	
+	public int getTileHeight()
+	{
+		return Math.max(1, Math.round(mTileHeight * mBitmapZoom));
 	}
 	
 	private void setInitialPositionOfTiles()
 	{
-		float startingHeight = getHeight() - (mGridSize * mTileHeight);
+		mTilePositions = new TilePosition[mGridSize*mGridSize];
 		
-		// Set all tiles to an initial starting postion below the grid
+		// Set all tiles to an initial starting postion below the grid. Since
+		// we may be restoring a saved game, some tiles may already be on the
+		// grid.
 		for (int i=0; i<mGridSize; i++)
 		{
 			for (int j=0; j<mGridSize; j++)
 			{
 				TilePosition newTilePosition = new TilePosition();
 				newTilePosition.tileNum = i*mGridSize + j;
-				newTilePosition.x = j*mTileWidth;
-				newTilePosition.y = startingHeight + i*mTileHeight;
+				setScratchPosition(newTilePosition);
 				newTilePosition.onGrid = false;
 				newTilePosition.gridX = -1;
 				newTilePosition.gridY = -1;
 				
-				mTilePositions.add(newTilePosition);
-			}
-		}
-
-		// Since we may be restoring a saved game, see if any tiles should be
-		// placed on the grid.
-		int [][] tileGridPositions = mController.getTileLocations();
-		for (int i=0; i<mGridSize; i++)
-		{
-			for (int j=0; j<mGridSize; j++)
-			{
-				if (tileGridPositions[i][j] != -1)
+				int gridSquare = mController.getTileLocation(newTilePosition.tileNum);
+				if (gridSquare != -1)
 				{
-					TilePosition tileData = findTileDataByTileNumber(tileGridPositions[i][j]);
-					this.placeTileOnGrid(tileData, i, j);
+					placeTileOnGrid(newTilePosition, gridSquare / mGridSize, gridSquare % mGridSize);
 				}
+				
+				mTilePositions[newTilePosition.tileNum] = newTilePosition;
 			}
 		}
+		
+		// Lower numbered tiles go in front
+		for (int tileNum=mTilePositions.length-1; tileNum>=0; tileNum--)
+		{
+			addToFront(mTilePositions[tileNum]);
+		}
 	}
 	
-	// Used by setInitialPositionOfTiles to locate a particular tile's data
-	private TilePosition findTileDataByTileNumber(int tileNum)
+	// Move a tile to its own starting spot below the grid
+	private void setScratchPosition(TilePosition tileData)
 	{
-		for (TilePosition tileData : mTilePositions)
-		{
-			if (tileData.tileNum == tileNum) return tileData;
-		}
-		
-		return null;
+		float startingHeight = getHeight() - (mGridSize * mTileHeight);
+		tileData.x = (tileData.tileNum % mGridSize) * mTileWidth;
+		tileData.y = startingHeight + (tileData.tileNum / mGridSize) * mTileHeight;
+	}
+	
+	// Put a tile back in the stacking order, in front of all others
+	private void addToFront(TilePosition tileData)
+	{
+		mZOrder.addToFront(tileData.tileNum);
+		mSpatialHash.insert(tileData.tileNum, tileData.x, tileData.y);
 	}
 	
 	public boolean onTouchEvent(MotionEvent event)
 	{
-		if (mPuzzleSolved) return true;
+		mScaleDetector.onTouchEvent(event);
+		float boardX = toBoardX(event.getX());
+		float boardY = toBoardY(event.getY());
 		
-		switch(event.getAction())
+		switch(event.getActionMasked())
 		{
 			case MotionEvent.ACTION_DOWN:
-				mTileBeingDragged = identifyTouchedTile(event.getX(), event.getY());
+				// Tiles stay put once the puzzle is solved, but the board can
+				// still be zoomed and panned
+				if (!mPuzzleSolved) mTileBeingDragged = identifyTouchedTile(boardX, boardY);
 				if (mTileBeingDragged != null)
 				{
-					mTilePositions.remove(mTileBeingDragged);
-					mFingerOffsetX = event.getX() - mTileBeingDragged.x;
-					mFingerOffsetY = event.getY() - mTileBeingDragged.y;
+					mZOrder.remove(mTileBeingDragged.tileNum);
+					mSpatialHash.remove(mTileBeingDragged.tileNum);
+					mFingerOffsetX = boardX - mTileBeingDragged.x;
+					mFingerOffsetY = boardY - mTileBeingDragged.y;
 					removeTileFromGrid(mTileBeingDragged);
-					invalidate();
+					
+					// Tile comes to the front, either in this view or on the
+					// drag layer (in which case it is taken off this view)
+					addTileToDirtyRect(mTileBeingDragged);
+					updateHover(mTileBeingDragged);
+					invalidateDirtyRect();
+					
+					mDragOnLayer = (mDragLayer != null) && mDragLayer.isReady();
+					if (mDragOnLayer)
+					{
+						mDragLayer.startDrag(getTileBitmap(mTileBeingDragged.tileNum), mTileWidth * mZoom,
+								mTileHeight * mZoom, toViewX(mTileBeingDragged.x), toViewY(mTileBeingDragged.y),
+								event.getEventTime());
+					}
 				}
+				else
+				{
+					mPanning = true;
+					mLastTouchX = event.getX();
+					mLastTouchY = event.getY();
+				}
+				break;
+				
+			// A second finger starts a pinch, which ends any drag
+			case MotionEvent.ACTION_POINTER_DOWN:
+				if (mTileBeingDragged != null) finishDrag();
+				mPanning = false;
 				break;
 				
 			case MotionEvent.ACTION_MOVE:
-				if (mTileBeingDragged != null)
+				if (mTileBeingDragged != null && mDragOnLayer)
+				{
+					// This view is only redrawn when the snap highlight moves
+					mTileBeingDragged.x = boardX - mFingerOffsetX;
+					mTileBeingDragged.y = boardY - mFingerOffsetY;
+					mDragLayer.moveTo(toViewX(mTileBeingDragged.x), toViewY(mTileBeingDragged.y), event.getEventTime());
+					updateHover(mTileBeingDragged);
+					if (!mDirtyRect.isEmpty()) invalidateDirtyRect();
+				}
+				else if (mTileBeingDragged != null)
 				{
-					mTileBeingDragged.x = event.getX() - mFingerOffsetX;
-					mTileBeingDragged.y = event.getY() - mFingerOffsetY;
-					invalidate();
+					addTileToDirtyRect(mTileBeingDragged);
+					mTileBeingDragged.x = boardX - mFingerOffsetX;
+					mTileBeingDragged.y = boardY - mFingerOffsetY;
+					addTileToDirtyRect(mTileBeingDragged);
+					updateHover(mTileBeingDragged);
+					invalidateDirtyRect();
+					if (mFrameStats != null) mFrameStats.touchHandled(event.getEventTime());
+				}
+				else if (mPanning)
+				{
+					panBy(event.getX() - mLastTouchX, event.getY() - mLastTouchY);
+					mLastTouchX = event.getX();
+					mLastTouchY = event.getY();
 				}
 				break;
 				
 			case MotionEvent.ACTION_UP:
-				if (mTileBeingDragged != null)
-				{
-					dropTile(mTileBeingDragged);
-					mTilePositions.addFirst(mTileBeingDragged);
-					mTileBeingDragged = null;
-					invalidate();
-				}
+			case MotionEvent.ACTION_CANCEL:
+				if (mTileBeingDragged != null) finishDrag();
+				mPanning = false;
+				break;
+				
+			case MotionEvent.ACTION_POINTER_UP:
 				break;
 				
 			default:
@@ -233,18 +738,40 @@ public class TetravexView extends View {
 		return true;
 	}
 	
+	// Drop the dragged tile where it is. It may snap to the grid or be
+	// pushed off of it.
+	private void finishDrag()
+	{
+		addTileToDirtyRect(mTileBeingDragged);
+		dropTile(mTileBeingDragged);
+		addTileToDirtyRect(mTileBeingDragged);
+		addToFront(mTileBeingDragged);
+		mTileBeingDragged = null;
+		updateHover(null);
+		invalidateDirtyRect();
+		endLayerDrag();
+	}
+	
+	// Return the frontmost tile under the touch, or null if there is none.
+	// Only tiles in the touched cell of the spatial hash need checking.
 	private TilePosition identifyTouchedTile(float touchX, float touchY)
 	{
-		for (TilePosition tileData : mTilePositions)
+		if (mTilePositions == null) return null;
+		
+		TilePosition touchedTile = null;
+		int cell = mSpatialHash.getCell(touchX, touchY);
+		for (int i=0; i<mSpatialHash.getCellTileCount(cell); i++)
 		{
+			TilePosition tileData = mTilePositions[mSpatialHash.getCellTile(cell, i)];
 			if ((tileData.x < touchX) && (touchX < tileData.x + mTileWidth) &&
-				(tileData.y < touchY) && (touchY < tileData.y + mTileHeight))
+				(tileData.y < touchY) && (touchY < tileData.y + mTileHeight) &&
+				(touchedTile == null || mZOrder.isInFront(tileData.tileNum, touchedTile.tileNum)))
 			{
-				return tileData;
+				touchedTile = tileData;
 			}
 		}
 		
-		return null;
+		return touchedTile;
 	}
 	
 	// Note: This function should check if removing the tile is a valid move
@@ -266,24 +793,47 @@ public class TetravexView extends View {
 	// the scratch area.
 	private void dropTile(TilePosition tileData)
 	{
-		gridCoordinates gridPosition = getGridCoordinates(tileData.x, tileData.y);
-		if (gridPosition == null) return;
+		gridCoordinates gridPosition = mGridPosition;
+		if (!getGridCoordinates(tileData.x, tileData.y, gridPosition))
+		{
+			mController.dropTileOffGrid();
+			return;
+		}
 		
 		int moveType = mController.placeTileOnGrid(tileData.tileNum, gridPosition.x, gridPosition.y);
 		switch (moveType)
 		{
 			case Tetravex.WINNING_MOVE:
-				mPuzzleSolved = true;
-				SoundEffectPlayer.play(mController, winSoundEffect);
 			case Tetravex.VALID_MOVE:
 				placeTileOnGrid(tileData, gridPosition.x, gridPosition.y);
-				if (moveType != Tetravex.WINNING_MOVE)
-					SoundEffectPlayer.play(mController, placeTileOnGridSoundEffect);
 				break;
 				
 			// Nothing to do but push tile downward into scratch area
 			case Tetravex.INVALID_MOVE:
 				tileData.y = (gridToScratchAreaRatio + cushionBetweenGridAndTile) * getHeight();
+				break;
+		}
+		
+		showMoveResult(moveType);
+	}
+	
+	// Play the sound for a tile placement, and stop tiles from moving once
+	// the puzzle is solved. Also used by the controller for its own moves,
+	// e.g. hints.
+	public void showMoveResult(int moveType)
+	{
+		switch (moveType)
+		{
+			case Tetravex.WINNING_MOVE:
+				mPuzzleSolved = true;
+				SoundEffectPlayer.play(mController, winSoundEffect);
+				break;
+				
+			case Tetravex.VALID_MOVE:
+				SoundEffectPlayer.play(mController, placeTileOnGridSoundEffect);
+				break;
+				
+			case Tetravex.INVALID_MOVE:
 				SoundEffectPlayer.play(mController, rejectTileSoundEffect);
 				break;
 		}
@@ -308,37 +858,21 @@ public class TetravexView extends View {
 		int y;
 	}
 	
-	// If tile is over grid, compute the closest grid square. If not, return null
-	private gridCoordinates getGridCoordinates(float x, float y)
+	// If tile is over grid, compute the closest grid square, store it in
+	// result and return true. If not, return false.
+	// The closest square is the one containing the tile's center, since grid
+	// squares and tiles have the same size.
+	private boolean getGridCoordinates(float x, float y, gridCoordinates result)
 	{
-		if (y >= gridToScratchAreaRatio * getHeight()) return null;
-		
-		gridCoordinates closestGridSquare = new gridCoordinates();
-		double smallestDistanceSoFar = Double.MAX_VALUE;
-		
-		for (int i=0; i<mGridSize; i++)
-		{
-			for (int j=0; j<mGridSize; j++)
-			{
-				float gridX = i*mTileWidth;
-				float gridY = j*mTileHeight;
-				double distance = computeEuclideanDistance(x, y, gridX, gridY);
-				
-				if (distance < smallestDistanceSoFar)
-				{
-					smallestDistanceSoFar = distance;
-					closestGridSquare.x = i;
-					closestGridSquare.y = j;
-				}
-			}
-		}
+		if (y >= gridToScratchAreaRatio * getHeight()) return false;
 		
-		return closestGridSquare;
+		result.x = clampToGrid((int) Math.floor((x + mTileWidth/2) / mTileWidth));
+		result.y = clampToGrid((int) Math.floor((y + mTileHeight/2) / mTileHeight));
+		return true;
 	}
 	
-	// Computes distance between two points using the Pythagorean Theorem
-	private double computeEuclideanDistance(float x1, float y1, float x2, float y2)
+	private int clampToGrid(int i)
 	{
-		return Math.sqrt(Math.pow((double)(x1 - x2), (double)2) + Math.pow((double)(y1 - y2), (double)2));
+		return Math.max(0, Math.min(mGridSize-1, i));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+// Pre-rendered pieces for drawing tiles of one size: a sprite for each
+// triangle (side and color), cut to the triangle's bounding box, plus one
+// overlay with all the borders. A tile is then built by copying four sprites
+// and the overlay, instead of filling and stroking paths.
+final class TileAtlas {
+	final int width;
+	final int height;
+	
+	private final Bitmap [][] mSprites; // Indexed by side, then color
+	private final int [] mSpriteX; // Position of each side's sprite in a tile
+	private final int [] mSpriteY;
+	private final Bitmap mBorders;
+	private final Paint mBitmapPaint = new Paint();
+	
+	TileAtlas(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		
+		// Bounding boxes of the triangles. The midpoint may fall inside a
+		// pixel, which then belongs to both halves.
+		int [] spriteWidths = new int[4];
+		int [] spriteHeights = new int[4];
+		mSpriteX = new int[4];
+		mSpriteY = new int[4];
+		setSpriteBounds(TetravexTileFactory.TOP, 0, 0, width, (height+1) / 2, spriteWidths, spriteHeights);
+		setSpriteBounds(TetravexTileFactory.LEFT, 0, 0, (width+1) / 2, height, spriteWidths, spriteHeights);
+		setSpriteBounds(TetravexTileFactory.RIGHT, width / 2, 0, width - width/2, height, spriteWidths, spriteHeights);
+		setSpriteBounds(TetravexTileFactory.BOTTOM, 0, height / 2, width, height - height/2, spriteWidths, spriteHeights);
+		
+		Path [] triangles = TetravexTileFactory.buildTrianglePaths(width, height);
+		mSprites = new Bitmap[4][TetravexTileFactory.MAX_VALUES];
+		for (int side=0; side<4; side++)
+		{
+			for (int value=0; value<TetravexTileFactory.MAX_VALUES; value++)
+			{
+				Bitmap sprite = Bitmap.createBitmap(spriteWidths[side], spriteHeights[side], Bitmap.Config.ARGB_8888);
+				Canvas canvasForSprite = new Canvas(sprite);
+				canvasForSprite.translate(-mSpriteX[side], -mSpriteY[side]);
+				canvasForSprite.drawPath(triangles[side], TetravexTileFactory.getTilePaint(value));
+				mSprites[side][value] = sprite;
+			}
+		}
+		
+		mBorders = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		TetravexTileFactory.drawBorders(new Canvas(mBorders), triangles, width, height);
+	}
+	
+	private void setSpriteBounds(int side, int x, int y, int w, int h, int [] spriteWidths, int [] spriteHeights)
+	{
+		mSpriteX[side] = x;
+		mSpriteY[side] = y;
+		spriteWidths[side] = w;
+		spriteHeights[side] = h;
+	}
+	
+	Bitmap buildTile(Tetravex.Tile tile)
+	{
+		Bitmap tileBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Canvas canvasForTile = new Canvas(tileBitmap);
+		
+		drawSprite(canvasForTile, TetravexTileFactory.TOP, tile.top);
+		drawSprite(canvasForTile, TetravexTileFactory.LEFT, tile.left);
+		drawSprite(canvasForTile, TetravexTileFactory.RIGHT, tile.right);
+		drawSprite(canvasForTile, TetravexTileFactory.BOTTOM, tile.bottom);
+		canvasForTile.drawBitmap(mBorders, 0, 0, mBitmapPaint);
+		
+		return tileBitmap;
+	}
+	
+	private void drawSprite(Canvas canvasForTile, int side, int value)
+	{
+		canvasForTile.drawBitmap(mSprites[side][value], mSpriteX[side], mSpriteY[side], mBitmapPaint);
+	}
+}
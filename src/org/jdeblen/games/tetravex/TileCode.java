@@ -0,0 +1,114 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+// Static helpers for tiles packed into a single int, one byte per edge
+// (top in the highest byte, then left, right and bottom). Two tiles have the
+// same edges exactly when their codes are equal, and codes can be stored and
+// passed around without allocating anything.
+final class TileCode {
+	// Code for "no tile", e.g. an empty grid square. No real tile has it, as
+	// edge values are far below 255.
+	public static final int EMPTY = -1;
+
+	private static final int TOP_SHIFT = 24;
+	private static final int LEFT_SHIFT = 16;
+	private static final int RIGHT_SHIFT = 8;
+	private static final int BOTTOM_SHIFT = 0;
+	private static final int EDGE_MASK = 0xff;
+
+	// Not instantiable
+	private TileCode()
+	{
+	}
+
+	public static int make(int top, int left, int right, int bottom)
+	{
+		return (top << TOP_SHIFT) | (left << LEFT_SHIFT) | (right << RIGHT_SHIFT) | (bottom << BOTTOM_SHIFT);
+	}
+
+	public static int fromTile(Tetravex.Tile t)
+	{
+		if (t == null) return EMPTY;
+		else return make(t.top, t.left, t.right, t.bottom);
+	}
+
+	public static Tetravex.Tile toTile(int code)
+	{
+		if (code == EMPTY) return null;
+		else return new Tetravex.Tile(top(code), left(code), right(code), bottom(code));
+	}
+
+	// Getters for each edge
+	public static int top(int code)
+	{
+		return (code >>> TOP_SHIFT) & EDGE_MASK;
+	}
+
+	public static int left(int code)
+	{
+		return (code >>> LEFT_SHIFT) & EDGE_MASK;
+	}
+
+	public static int right(int code)
+	{
+		return (code >>> RIGHT_SHIFT) & EDGE_MASK;
+	}
+
+	public static int bottom(int code)
+	{
+		return (code >>> BOTTOM_SHIFT) & EDGE_MASK;
+	}
+
+	// Codes packed into 16 bits, one nibble per edge in the same order. Only
+	// valid for edge values up to MAX_NIBBLE_VALUE.
+	public static final int MAX_NIBBLE_VALUE = 15;
+	
+	public static int toNibbles(int code)
+	{
+		return (top(code) << 12) | (left(code) << 8) | (right(code) << 4) | bottom(code);
+	}
+	
+	public static int fromNibbles(int nibbles)
+	{
+		return make((nibbles >>> 12) & 0xf, (nibbles >>> 8) & 0xf, (nibbles >>> 4) & 0xf, nibbles & 0xf);
+	}
+	
+	// Copies of a code with one edge changed
+	public static int withTop(int code, int value)
+	{
+		return (code & ~(EDGE_MASK << TOP_SHIFT)) | (value << TOP_SHIFT);
+	}
+
+	public static int withLeft(int code, int value)
+	{
+		return (code & ~(EDGE_MASK << LEFT_SHIFT)) | (value << LEFT_SHIFT);
+	}
+
+	public static int withRight(int code, int value)
+	{
+		return (code & ~(EDGE_MASK << RIGHT_SHIFT)) | (value << RIGHT_SHIFT);
+	}
+
+	public static int withBottom(int code, int value)
+	{
+		return (code & ~(EDGE_MASK << BOTTOM_SHIFT)) | (value << BOTTOM_SHIFT);
+	}
+}
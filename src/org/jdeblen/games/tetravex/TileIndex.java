@@ -0,0 +1,151 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Arrays;
+
+// Multiset index from tile code (see TileCode) to tile ids, where the id of a
+// tile is its position in the array given to the constructor. Puzzles may
+// contain identical tiles, so a code can map to several ids. These are kept
+// in a chain: firstTile gives the first one and nextTile the one after.
+// takeTile hands out the ids for a code one at a time instead, so matching n
+// tiles against the index takes O(n) time even with many duplicates.
+//
+// Codes are kept in an open addressing hash table with linear probing. It is
+// built once per puzzle, and lookups do not allocate.
+final class TileIndex {
+	private final int [] mSlotCodes; // Code in each slot, TileCode.EMPTY if free
+	private final int [] mSlotFirstTiles; // First tile with the code in each slot
+	private final int [] mSlotNextFree; // Next tile takeTile hands out, -1 if none
+	private final int [] mNextTiles; // Next tile with the same code, -1 at the end
+	private final int mMask;
+
+	public TileIndex(int [] tileCodes)
+	{
+		// At most half the slots are used, which keeps probe sequences short
+		int numSlots = 1;
+		while (numSlots < 2*tileCodes.length) numSlots <<= 1;
+		mMask = numSlots - 1;
+
+		mSlotCodes = new int[numSlots];
+		mSlotFirstTiles = new int[numSlots];
+		mSlotNextFree = new int[numSlots];
+		mNextTiles = new int[tileCodes.length];
+		Arrays.fill(mSlotCodes, TileCode.EMPTY);
+
+		// Add tiles in reverse, so each chain lists ids in increasing order
+		for (int tileNum=tileCodes.length-1; tileNum>=0; tileNum--)
+		{
+			int slot = findSlot(tileCodes[tileNum]);
+			if (mSlotCodes[slot] == TileCode.EMPTY)
+			{
+				mSlotCodes[slot] = tileCodes[tileNum];
+				mNextTiles[tileNum] = -1;
+			}
+			else mNextTiles[tileNum] = mSlotFirstTiles[slot];
+
+			mSlotFirstTiles[slot] = tileNum;
+		}
+
+		resetTaken();
+	}
+
+	// Return the first tile with the given code, or -1 if there is none
+	public int firstTile(int code)
+	{
+		int slot = findSlot(code);
+		if (mSlotCodes[slot] == TileCode.EMPTY) return -1;
+		else return mSlotFirstTiles[slot];
+	}
+
+	// Return the next tile with the same code as the given tile, or -1 if
+	// there is none
+	public int nextTile(int tileNum)
+	{
+		return mNextTiles[tileNum];
+	}
+
+	// Return the next tile with the given code that has not been taken yet,
+	// in id order, or -1 if they are all taken
+	public int takeTile(int code)
+	{
+		int slot = findSlot(code);
+		if (mSlotCodes[slot] == TileCode.EMPTY) return -1;
+
+		int tileNum = mSlotNextFree[slot];
+		if (tileNum != -1) mSlotNextFree[slot] = mNextTiles[tileNum];
+		return tileNum;
+	}
+
+	// Make all tiles available to takeTile again
+	public void resetTaken()
+	{
+		System.arraycopy(mSlotFirstTiles, 0, mSlotNextFree, 0, mSlotFirstTiles.length);
+	}
+
+	// Match the tiles on a puzzle's board with tile ids, filling in the tile
+	// on each square (x*size + y, -1 if empty) and the square of each tile
+	// (-1 if off the board). If a puzzle has two identical tiles, we have to
+	// be careful that we don't place the same tile twice. takeTile takes care
+	// of this by handing out each id only once.
+	public void matchBoard(Tetravex puzzle, int [] squareTiles, int [] tileSquares)
+	{
+		int size = puzzle.getSize();
+		Arrays.fill(tileSquares, -1);
+		resetTaken();
+		
+		for (int x=0; x<size; x++)
+		{
+			for (int y=0; y<size; y++)
+			{
+				int square = x*size + y;
+				int code = puzzle.getBoardTileCode(x, y);
+				
+				if (code == TileCode.EMPTY) squareTiles[square] = -1;
+				else squareTiles[square] = takeTile(code);
+				
+				if (squareTiles[square] != -1) tileSquares[squareTiles[square]] = square;
+			}
+		}
+	}
+	
+	// Return the slot holding the given code, or the free slot where it
+	// would go
+	private int findSlot(int code)
+	{
+		int slot = hash(code) & mMask;
+		while (mSlotCodes[slot] != TileCode.EMPTY && mSlotCodes[slot] != code)
+		{
+			slot = (slot + 1) & mMask;
+		}
+		return slot;
+	}
+
+	// Spread the edge bytes over all bits (murmur3 finalizer)
+	private static int hash(int code)
+	{
+		code ^= code >>> 16;
+		code *= 0x85ebca6b;
+		code ^= code >>> 13;
+		code *= 0xc2b2ae35;
+		code ^= code >>> 16;
+		return code;
+	}
+}
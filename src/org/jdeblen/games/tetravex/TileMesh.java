@@ -0,0 +1,166 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+// Draws tiles straight from triangles, without bitmaps: each frame the
+// visible tiles are added to one vertex array and drawn with a single
+// drawVertices call. A tile is 16 triangles: its four colored triangles
+// (colors from TetravexTileFactory's palette), then thin quads for the
+// borders along its edges and diagonals, as TetravexTileFactory draws them.
+// Borders are as wide as in a tile bitmap of the size given to reset,
+// stretched over the tile's rectangle, so that both ways of drawing tiles
+// show the same picture, also while a pinch stretches the bitmaps.
+//
+// Triangles carry their color in a per-vertex color array rather than
+// being grouped by color, as tiles in the scratch area may overlap: drawn
+// in the order they are added, later tiles correctly cover earlier ones.
+//
+// Arrays grow as needed and are then reused, so a steady frame does not
+// allocate. drawVertices is not supported by hardware acceleration before
+// API 18; this app does not turn it on.
+final class TileMesh {
+	private static final int TRIANGLES_PER_TILE = 16;
+	private static final int VERTICES_PER_TILE = 3*TRIANGLES_PER_TILE;
+	
+	private static final int [] palette = new int[TetravexTileFactory.MAX_VALUES];
+	static
+	{
+		for (int i=0; i<palette.length; i++) palette[i] = TetravexTileFactory.getTilePaint(i).getColor();
+	}
+	
+	private float [] mVertices = new float[0]; // x, y for each vertex
+	private int [] mColors = new int[0];
+	private int mNumVertices = 0;
+	private final Paint mPaint = new Paint();
+	private int mBitmapWidth = 1;
+	private int mBitmapHeight = 1;
+	
+	// Half the border width, across each axis, for the tile being added
+	private float mHalfBorderX;
+	private float mHalfBorderY;
+	
+	// Start a new batch, of tiles drawn as if from bitmaps of the given size
+	public void reset(int bitmapWidth, int bitmapHeight)
+	{
+		mNumVertices = 0;
+		mBitmapWidth = bitmapWidth;
+		mBitmapHeight = bitmapHeight;
+	}
+	
+	public int getNumTiles()
+	{
+		return mNumVertices / VERTICES_PER_TILE;
+	}
+	
+	// Bytes held by the vertex and color arrays
+	public int getSizeBytes()
+	{
+		return 4*(mVertices.length + mColors.length);
+	}
+	
+	// Add a tile (given as a TileCode) covering the given rectangle, in front
+	// of the tiles already added
+	public void addTile(int tileCode, float left, float top, float right, float bottom)
+	{
+		ensureCapacity(mNumVertices + VERTICES_PER_TILE);
+		float midX = (left + right) / 2;
+		float midY = (top + bottom) / 2;
+		
+		addTriangle(left, top, midX, midY, right, top, palette[TileCode.top(tileCode)]);
+		addTriangle(left, top, midX, midY, left, bottom, palette[TileCode.left(tileCode)]);
+		addTriangle(right, top, midX, midY, right, bottom, palette[TileCode.right(tileCode)]);
+		addTriangle(left, bottom, midX, midY, right, bottom, palette[TileCode.bottom(tileCode)]);
+		
+		// Edge borders fall inside the tile, as a bitmap clips their outer
+		// half. Diagonals are centered on the line.
+		mHalfBorderX = TetravexTileFactory.BORDER_WIDTH / 2 * (right - left) / mBitmapWidth;
+		mHalfBorderY = TetravexTileFactory.BORDER_WIDTH / 2 * (bottom - top) / mBitmapHeight;
+		addQuad(left, top, right, top, left, top + mHalfBorderY, right, top + mHalfBorderY);
+		addQuad(left, bottom - mHalfBorderY, right, bottom - mHalfBorderY, left, bottom, right, bottom);
+		addQuad(left, top, left + mHalfBorderX, top, left, bottom, left + mHalfBorderX, bottom);
+		addQuad(right - mHalfBorderX, top, right, top, right - mHalfBorderX, bottom, right, bottom);
+		addLine(left, top, right, bottom);
+		addLine(right, top, left, bottom);
+	}
+	
+	// Draw all tiles added since the last reset
+	public void draw(Canvas canvas)
+	{
+		if (mNumVertices == 0) return;
+		
+		// drawVertices checks the color array against the number of values
+		// in the vertex array, not the number of vertices, so the color array
+		// is kept as long as the vertex array
+		canvas.drawVertices(Canvas.VertexMode.TRIANGLES, 2*mNumVertices, mVertices, 0, null, 0,
+				mColors, 0, null, 0, 0, mPaint);
+	}
+	
+	// Border centered on a line. The offset to its sides is perpendicular to
+	// the line in the bitmap, and then stretched like the bitmap.
+	private void addLine(float x0, float y0, float x1, float y1)
+	{
+		float bitmapDx = (x1 - x0) / mHalfBorderX;
+		float bitmapDy = (y1 - y0) / mHalfBorderY;
+		float length = (float) Math.hypot(bitmapDx, bitmapDy);
+		float dx = -bitmapDy / length * mHalfBorderX;
+		float dy = bitmapDx / length * mHalfBorderY;
+		addQuad(x0 + dx, y0 + dy, x1 + dx, y1 + dy, x0 - dx, y0 - dy, x1 - dx, y1 - dy);
+	}
+	
+	// Black quad with corners a and b along one side and c and d opposite
+	// them
+	private void addQuad(float ax, float ay, float bx, float by, float cx, float cy, float dx, float dy)
+	{
+		addTriangle(ax, ay, bx, by, cx, cy, Color.BLACK);
+		addTriangle(bx, by, dx, dy, cx, cy, Color.BLACK);
+	}
+	
+	private void addTriangle(float x0, float y0, float x1, float y1, float x2, float y2, int color)
+	{
+		int i = 2*mNumVertices;
+		mVertices[i] = x0;
+		mVertices[i+1] = y0;
+		mVertices[i+2] = x1;
+		mVertices[i+3] = y1;
+		mVertices[i+4] = x2;
+		mVertices[i+5] = y2;
+		mColors[mNumVertices] = color;
+		mColors[mNumVertices+1] = color;
+		mColors[mNumVertices+2] = color;
+		mNumVertices += 3;
+	}
+	
+	private void ensureCapacity(int numVertices)
+	{
+		if (2*numVertices <= mVertices.length) return;
+		
+		int length = Math.max(2*numVertices, 2*mVertices.length);
+		float [] vertices = new float[length];
+		int [] colors = new int[length];
+		System.arraycopy(mVertices, 0, vertices, 0, 2*mNumVertices);
+		System.arraycopy(mColors, 0, colors, 0, mNumVertices);
+		mVertices = vertices;
+		mColors = colors;
+	}
+}
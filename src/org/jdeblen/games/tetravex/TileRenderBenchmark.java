@@ -0,0 +1,146 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+// Microbenchmark comparing the two ways TetravexTileFactory draws tiles:
+// filling triangle paths, and compositing sprites from a TileAtlas. Each
+// round draws a full board of random tiles both ways, bypassing the bitmap
+// cache, and the fastest round of each is reported. Must run on a device,
+// since it measures the platform's drawing code.
+//
+// It then compares the two ways TetravexView draws a frame: a board of tile
+// bitmaps, and the same board from a TileMesh, reporting the fastest frame
+// of each and the memory each holds (bitmaps, or vertex and color arrays).
+final class TileRenderBenchmark {
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 10;
+	
+	// Not instantiable
+	private TileRenderBenchmark()
+	{
+	}
+	
+	// Run the benchmark for a board of boardSize x boardSize tiles, returning
+	// a one line summary
+	public static String run(int boardSize, int tileWidth, int tileHeight)
+	{
+		Random randomNumberFactory = new Random(0);
+		Tetravex.Tile [] tiles = new Tetravex.Tile[boardSize*boardSize];
+		for (int i=0; i<tiles.length; i++)
+		{
+			tiles[i] = new Tetravex.Tile(randomValue(randomNumberFactory), randomValue(randomNumberFactory),
+					randomValue(randomNumberFactory), randomValue(randomNumberFactory));
+		}
+		
+		long startTime = System.nanoTime();
+		TileAtlas atlas = new TileAtlas(tileWidth, tileHeight);
+		long atlasNanos = System.nanoTime() - startTime;
+		
+		long bestPathNanos = Long.MAX_VALUE;
+		long bestAtlasNanos = Long.MAX_VALUE;
+		for (int round=0; round<WARMUP_ROUNDS+ROUNDS; round++)
+		{
+			startTime = System.nanoTime();
+			for (Tetravex.Tile t : tiles) discard(TetravexTileFactory.buildColorTile(t, tileWidth, tileHeight));
+			long pathNanos = System.nanoTime() - startTime;
+			
+			startTime = System.nanoTime();
+			for (Tetravex.Tile t : tiles) discard(atlas.buildTile(t));
+			long atlasRoundNanos = System.nanoTime() - startTime;
+			
+			if (round >= WARMUP_ROUNDS)
+			{
+				bestPathNanos = Math.min(bestPathNanos, pathNanos);
+				bestAtlasNanos = Math.min(bestAtlasNanos, atlasRoundNanos);
+			}
+		}
+		
+		return String.format("%d tiles of %dx%d: paths %.2f ms, atlas %.2f ms (+%.2f ms to build atlas once)\n",
+				tiles.length, tileWidth, tileHeight, bestPathNanos / 1e6, bestAtlasNanos / 1e6, atlasNanos / 1e6) +
+				runFrames(tiles, boardSize, tileWidth, tileHeight, atlas);
+	}
+	
+	private static String runFrames(Tetravex.Tile [] tiles, int boardSize, int tileWidth, int tileHeight, TileAtlas atlas)
+	{
+		Bitmap frame = Bitmap.createBitmap(boardSize*tileWidth, boardSize*tileHeight, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(frame);
+		
+		Bitmap [] tileBitmaps = new Bitmap[tiles.length];
+		long bitmapBytes = 0;
+		for (int i=0; i<tiles.length; i++)
+		{
+			tileBitmaps[i] = atlas.buildTile(tiles[i]);
+			bitmapBytes += tileBitmaps[i].getRowBytes() * tileBitmaps[i].getHeight();
+		}
+		
+		TileMesh mesh = new TileMesh();
+		long bestBitmapNanos = Long.MAX_VALUE;
+		long bestMeshNanos = Long.MAX_VALUE;
+		for (int round=0; round<WARMUP_ROUNDS+ROUNDS; round++)
+		{
+			long startTime = System.nanoTime();
+			for (int i=0; i<tiles.length; i++)
+			{
+				canvas.drawBitmap(tileBitmaps[i], (i / boardSize) * tileWidth, (i % boardSize) * tileHeight, null);
+			}
+			long bitmapNanos = System.nanoTime() - startTime;
+			
+			startTime = System.nanoTime();
+			mesh.reset(tileWidth, tileHeight);
+			for (int i=0; i<tiles.length; i++)
+			{
+				float left = (i / boardSize) * tileWidth;
+				float top = (i % boardSize) * tileHeight;
+				mesh.addTile(TileCode.fromTile(tiles[i]), left, top, left + tileWidth, top + tileHeight);
+			}
+			mesh.draw(canvas);
+			long meshNanos = System.nanoTime() - startTime;
+			
+			if (round >= WARMUP_ROUNDS)
+			{
+				bestBitmapNanos = Math.min(bestBitmapNanos, bitmapNanos);
+				bestMeshNanos = Math.min(bestMeshNanos, meshNanos);
+			}
+		}
+		
+		for (Bitmap tileBitmap : tileBitmaps) discard(tileBitmap);
+		discard(frame);
+		
+		return String.format("Frame: bitmaps %.2f ms (%d KB), vertices %.2f ms (%d KB)",
+				bestBitmapNanos / 1e6, bitmapBytes / 1024, bestMeshNanos / 1e6, mesh.getSizeBytes() / 1024);
+	}
+	
+	private static int randomValue(Random randomNumberFactory)
+	{
+		return randomNumberFactory.nextInt(TetravexTileFactory.MAX_VALUES);
+	}
+	
+	// Free bitmap memory right away, so the garbage collector does not skew
+	// later rounds
+	private static void discard(Bitmap tileBitmap)
+	{
+		tileBitmap.recycle();
+	}
+}
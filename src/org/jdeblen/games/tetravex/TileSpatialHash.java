@@ -0,0 +1,150 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Arrays;
+
+// Uniform grid over the view, recording which tiles overlap each cell, so
+// finding the tile under a point only checks the few tiles in one cell.
+// Cells are the size of a tile, so a tile overlaps at most four of them.
+// Tiles partly or wholly outside the view are put in the nearest edge cells.
+//
+// Each cell's tiles are kept in an array that grows as needed, so after the
+// first few moves adding and removing tiles does not allocate.
+final class TileSpatialHash {
+	private static final int INITIAL_CELL_CAPACITY = 4;
+	
+	private int mColumns;
+	private int mRows;
+	private float mCellWidth;
+	private float mCellHeight;
+	private int [][] mCellTiles;
+	private int [] mCellCounts;
+	
+	// Cells covered by each tile, as a range of columns and rows. mInHash says
+	// whether the tile is in the hash at all.
+	private final int [] mFirstColumns;
+	private final int [] mLastColumns;
+	private final int [] mFirstRows;
+	private final int [] mLastRows;
+	private final boolean [] mInHash;
+	
+	public TileSpatialHash(int numTiles)
+	{
+		mFirstColumns = new int[numTiles];
+		mLastColumns = new int[numTiles];
+		mFirstRows = new int[numTiles];
+		mLastRows = new int[numTiles];
+		mInHash = new boolean[numTiles];
+		resize(1, 1, 1, 1);
+	}
+	
+	// Set up the cells for a new view and tile size. All tiles are removed.
+	public void resize(int viewWidth, int viewHeight, float cellWidth, float cellHeight)
+	{
+		mCellWidth = Math.max(cellWidth, 1);
+		mCellHeight = Math.max(cellHeight, 1);
+		mColumns = Math.max((int) Math.ceil(viewWidth / mCellWidth), 1);
+		mRows = Math.max((int) Math.ceil(viewHeight / mCellHeight), 1);
+		
+		mCellTiles = new int[mColumns*mRows][INITIAL_CELL_CAPACITY];
+		mCellCounts = new int[mColumns*mRows];
+		Arrays.fill(mInHash, false);
+	}
+	
+	// Add a tile with its upper left corner at (x, y)
+	public void insert(int tileNum, float x, float y)
+	{
+		if (mInHash[tileNum]) remove(tileNum);
+		mInHash[tileNum] = true;
+		
+		mFirstColumns[tileNum] = getColumn(x);
+		mLastColumns[tileNum] = getColumn(x + mCellWidth);
+		mFirstRows[tileNum] = getRow(y);
+		mLastRows[tileNum] = getRow(y + mCellHeight);
+		
+		for (int column=mFirstColumns[tileNum]; column<=mLastColumns[tileNum]; column++)
+		{
+			for (int row=mFirstRows[tileNum]; row<=mLastRows[tileNum]; row++)
+			{
+				int cell = column*mRows + row;
+				if (mCellCounts[cell] == mCellTiles[cell].length)
+				{
+					int [] cellTiles = new int[2*mCellTiles[cell].length];
+					System.arraycopy(mCellTiles[cell], 0, cellTiles, 0, mCellCounts[cell]);
+					mCellTiles[cell] = cellTiles;
+				}
+				mCellTiles[cell][mCellCounts[cell]++] = tileNum;
+			}
+		}
+	}
+	
+	public void remove(int tileNum)
+	{
+		if (!mInHash[tileNum]) return;
+		mInHash[tileNum] = false;
+		
+		for (int column=mFirstColumns[tileNum]; column<=mLastColumns[tileNum]; column++)
+		{
+			for (int row=mFirstRows[tileNum]; row<=mLastRows[tileNum]; row++)
+			{
+				int cell = column*mRows + row;
+				int [] cellTiles = mCellTiles[cell];
+				for (int i=0; i<mCellCounts[cell]; i++)
+				{
+					// Order within a cell does not matter, so fill the hole
+					// with the last tile
+					if (cellTiles[i] == tileNum)
+					{
+						cellTiles[i] = cellTiles[--mCellCounts[cell]];
+						break;
+					}
+				}
+			}
+		}
+	}
+	
+	// Return the cell holding the given point. Its tiles are then available
+	// through getCellTileCount and getCellTile.
+	public int getCell(float x, float y)
+	{
+		return getColumn(x)*mRows + getRow(y);
+	}
+	
+	public int getCellTileCount(int cell)
+	{
+		return mCellCounts[cell];
+	}
+	
+	public int getCellTile(int cell, int i)
+	{
+		return mCellTiles[cell][i];
+	}
+	
+	private int getColumn(float x)
+	{
+		return Math.max(0, Math.min(mColumns-1, (int) Math.floor(x / mCellWidth)));
+	}
+	
+	private int getRow(float y)
+	{
+		return Math.max(0, Math.min(mRows-1, (int) Math.floor(y / mCellHeight)));
+	}
+}
@@ -0,0 +1,182 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Records what the game does (moves, saves, new puzzles) as typed events in
+// a ring buffer, keeping the last CAPACITY of them for getReport to dump.
+// Each event is a type, a time, the recording thread and up to three ints,
+// stored in preallocated arrays, so recording never allocates or blocks and
+// is cheap enough for every move. Text is only built when dumping.
+//
+// Set ENABLED to false to compile tracing out: the methods are then empty
+// and calls to them cost nothing beyond passing their arguments.
+//
+// Events can be recorded from any thread. Each one claims a slot with an
+// atomic counter, marks the slot as being written and stamps it with its
+// sequence number once written. getReport skips slots whose stamp changes
+// while it reads them, i.e. slots being overwritten by new events. The
+// events' fields are kept in atomic arrays and all accesses are volatile,
+// so a reader that sees any field of a newer event also sees the stamp
+// change.
+final class Tracer {
+	public static final boolean ENABLED = true;
+	private static final int CAPACITY = 1024; // Power of two
+	
+	// Event types, and their arguments
+	private static final int MOVE_PLACED = 0; // Square, tile code
+	private static final int MOVE_REJECTED = 1; // Square, tile code
+	private static final int TILE_REMOVED = 2; // Square, tile code
+	private static final int SAVE_STARTED = 3; // Bytes, 1 if appending
+	private static final int SAVE_FINISHED = 4; // Bytes, 1 if appending, 1 if successful
+	private static final int PUZZLE_GENERATED = 5; // Size, attempts, rating in hundredths (-1 if not unique)
+	private static final int TILES_DRAWN = 6; // New bitmaps in a frame, cache hits and misses so far
+	private static final String [] typeNames = {"move placed", "move rejected", "tile removed", "save started",
+		"save finished", "puzzle generated", "tiles drawn"};
+	
+	private static final AtomicLong nextSequence = new AtomicLong();
+	private static final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+	private static final AtomicLongArray times = new AtomicLongArray(CAPACITY);
+	private static final AtomicLongArray threadIds = new AtomicLongArray(CAPACITY);
+	private static final AtomicIntegerArray types = new AtomicIntegerArray(CAPACITY);
+	private static final AtomicIntegerArray args = new AtomicIntegerArray(3*CAPACITY);
+	
+	// Not instantiable
+	private Tracer()
+	{
+	}
+	
+	// Typed events. Squares are numbered x*size + y.
+	public static void movePlaced(int square, int tileCode)
+	{
+		if (ENABLED) record(MOVE_PLACED, square, tileCode, 0);
+	}
+	
+	public static void moveRejected(int square, int tileCode)
+	{
+		if (ENABLED) record(MOVE_REJECTED, square, tileCode, 0);
+	}
+	
+	public static void tileRemoved(int square, int tileCode)
+	{
+		if (ENABLED) record(TILE_REMOVED, square, tileCode, 0);
+	}
+	
+	public static void saveStarted(int numBytes, boolean append)
+	{
+		if (ENABLED) record(SAVE_STARTED, numBytes, append ? 1 : 0, 0);
+	}
+	
+	public static void saveFinished(int numBytes, boolean append, boolean saved)
+	{
+		if (ENABLED) record(SAVE_FINISHED, numBytes, append ? 1 : 0, saved ? 1 : 0);
+	}
+	
+	public static void puzzleGenerated(Tetravex puzzle)
+	{
+		if (ENABLED)
+		{
+			record(PUZZLE_GENERATED, puzzle.getSize(), puzzle.getGenerationAttempts(),
+					puzzle.hasUniqueSolution() ? (int) Math.round(100 * puzzle.getDifficultyRating()) : -1);
+		}
+	}
+	
+	public static void tilesDrawn(int numTiles, int cacheHits, int cacheMisses)
+	{
+		if (ENABLED) record(TILES_DRAWN, numTiles, cacheHits, cacheMisses);
+	}
+	
+	private static void record(int type, int arg0, int arg1, int arg2)
+	{
+		long sequence = nextSequence.getAndIncrement();
+		int slot = (int) sequence & (CAPACITY - 1);
+		
+		stamps.set(slot, -1); // Being written
+		times.set(slot, System.nanoTime());
+		threadIds.set(slot, Thread.currentThread().getId());
+		types.set(slot, type);
+		args.set(3*slot, arg0);
+		args.set(3*slot + 1, arg1);
+		args.set(3*slot + 2, arg2);
+		stamps.set(slot, sequence);
+	}
+	
+	// Return the events in the buffer, oldest first, one per line: time in
+	// ms relative to the oldest event, thread id, type and arguments. Tile
+	// codes are shown in hex, one byte per edge.
+	public static String getReport()
+	{
+		StringBuilder report = new StringBuilder();
+		if (!ENABLED) return report.toString();
+		
+		long end = nextSequence.get();
+		long startTime = 0;
+		boolean first = true;
+		for (long sequence=Math.max(0, end - CAPACITY); sequence<end; sequence++)
+		{
+			int slot = (int) sequence & (CAPACITY - 1);
+			if (stamps.get(slot) != sequence) continue;
+			
+			long time = times.get(slot);
+			long threadId = threadIds.get(slot);
+			int type = types.get(slot);
+			int arg0 = args.get(3*slot);
+			int arg1 = args.get(3*slot + 1);
+			int arg2 = args.get(3*slot + 2);
+			if (stamps.get(slot) != sequence) continue;
+			
+			if (first)
+			{
+				startTime = time;
+				first = false;
+			}
+			
+			report.append(String.format("%10.3f %4d %-16s ", (time - startTime) / 1e6, threadId, typeNames[type]));
+			switch (type)
+			{
+				case MOVE_PLACED:
+				case MOVE_REJECTED:
+				case TILE_REMOVED:
+					report.append(String.format("square %d, tile %08x", arg0, arg1));
+					break;
+				case SAVE_STARTED:
+					report.append(String.format("%d bytes%s", arg0, (arg1 != 0) ? ", append" : ""));
+					break;
+				case SAVE_FINISHED:
+					report.append(String.format("%d bytes%s, %s", arg0, (arg1 != 0) ? ", append" : "",
+							(arg2 != 0) ? "saved" : "failed"));
+					break;
+				case PUZZLE_GENERATED:
+					report.append(String.format("size %d, %d attempts, ", arg0, arg1));
+					report.append((arg2 < 0) ? "not unique" : String.format("rating %.2f", arg2 / 100.0));
+					break;
+				case TILES_DRAWN:
+					report.append(String.format("%d tiles, %d cache hits, %d misses", arg0, arg1, arg2));
+					break;
+			}
+			report.append('\n');
+		}
+		
+		return report.toString();
+	}
+}
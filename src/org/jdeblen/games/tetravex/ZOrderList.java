@@ -0,0 +1,115 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+// Stacking order of tiles, from back to front, as a doubly linked list
+// threaded through arrays indexed by tile number. Adding, removing and
+// bringing a tile to the front are O(1) and do not allocate.
+//
+// Each tile in the list also has a stamp, which is larger the closer the
+// tile is to the front. This lets two tiles be compared without walking the
+// list.
+final class ZOrderList {
+	private final int [] mAbove; // Next tile toward the front, -1 at the front
+	private final int [] mBelow; // Next tile toward the back, -1 at the back
+	private final int [] mStamps;
+	private final boolean [] mInList;
+	private int mFront = -1;
+	private int mBack = -1;
+	private int mNextStamp = 0;
+	
+	public ZOrderList(int numTiles)
+	{
+		mAbove = new int[numTiles];
+		mBelow = new int[numTiles];
+		mStamps = new int[numTiles];
+		mInList = new boolean[numTiles];
+	}
+	
+	public void addToFront(int tileNum)
+	{
+		if (mInList[tileNum]) remove(tileNum);
+		if (mNextStamp == Integer.MAX_VALUE) renumberStamps();
+		
+		mInList[tileNum] = true;
+		mStamps[tileNum] = mNextStamp++;
+		mAbove[tileNum] = -1;
+		mBelow[tileNum] = mFront;
+		if (mFront != -1) mAbove[mFront] = tileNum;
+		else mBack = tileNum;
+		mFront = tileNum;
+	}
+	
+	public void remove(int tileNum)
+	{
+		if (!mInList[tileNum]) return;
+		mInList[tileNum] = false;
+		
+		if (mAbove[tileNum] != -1) mBelow[mAbove[tileNum]] = mBelow[tileNum];
+		else mFront = mBelow[tileNum];
+		
+		if (mBelow[tileNum] != -1) mAbove[mBelow[tileNum]] = mAbove[tileNum];
+		else mBack = mAbove[tileNum];
+	}
+	
+	// Stamps only grow, so after very many moves they are handed out again
+	// from 0, in the current order
+	private void renumberStamps()
+	{
+		mNextStamp = 0;
+		for (int tileNum=mBack; tileNum!=-1; tileNum=mAbove[tileNum])
+		{
+			mStamps[tileNum] = mNextStamp++;
+		}
+	}
+	
+	public boolean contains(int tileNum)
+	{
+		return mInList[tileNum];
+	}
+	
+	// Getters for walking the list. All return -1 past the ends.
+	public int getFront()
+	{
+		return mFront;
+	}
+	
+	public int getBack()
+	{
+		return mBack;
+	}
+	
+	public int getAbove(int tileNum)
+	{
+		return mAbove[tileNum];
+	}
+	
+	public int getBelow(int tileNum)
+	{
+		return mBelow[tileNum];
+	}
+	
+	// Return true if the first tile is in front of the second. Both must be
+	// in the list.
+	public boolean isInFront(int tileNum, int otherTileNum)
+	{
+		return mStamps[tileNum] > mStamps[otherTileNum];
+	}
+}
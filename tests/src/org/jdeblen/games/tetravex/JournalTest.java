@@ -0,0 +1,130 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import junit.framework.TestCase;
+
+// Saving and restoring puzzles with a journal that is missing, belongs to
+// another checkpoint or ends part way through an event. Moves made after
+// restoring such a puzzle must not be lost.
+public class JournalTest extends TestCase {
+	private static final String NAME = "test";
+	private static final int SIZE = 4;
+	private static final int MAX_VALUES = 6;
+	
+	private MemoryPuzzleStorage mStorage;
+	private Tetravex mPuzzle;
+	
+	@Override
+	protected void setUp()
+	{
+		mStorage = new MemoryPuzzleStorage();
+		mPuzzle = new Tetravex(SIZE, MAX_VALUES);
+		assertTrue(mPuzzle.savePuzzle(NAME, mStorage));
+		
+		// One move in the journal after the checkpoint
+		placeSolutionTile(mPuzzle, 0);
+		mPuzzle.savePuzzleAsync(NAME, mStorage);
+		PuzzleSaver.waitForSaves();
+	}
+	
+	public void testCompleteJournal()
+	{
+		checkMoveAfterRestore(mStorage, 1);
+	}
+	
+	public void testMissingJournal()
+	{
+		MemoryPuzzleStorage storage = new MemoryPuzzleStorage();
+		storage.write(NAME + ".puzzle", mStorage.read(NAME + ".puzzle"));
+		checkMoveAfterRestore(storage, 0);
+	}
+	
+	public void testMismatchedCheckpointId()
+	{
+		byte [] journal = mStorage.read(NAME + ".journal");
+		journal[4] ^= 1;  // First byte of the checkpoint id, after the magic number
+		mStorage.write(NAME + ".journal", journal);
+		checkMoveAfterRestore(mStorage, 0);
+	}
+	
+	public void testTruncatedJournal()
+	{
+		// A second move, of which only half is written
+		placeSolutionTile(mPuzzle, 1);
+		mPuzzle.savePuzzleAsync(NAME, mStorage);
+		PuzzleSaver.waitForSaves();
+		
+		byte [] journal = mStorage.read(NAME + ".journal");
+		byte [] truncated = new byte[journal.length - 2];
+		System.arraycopy(journal, 0, truncated, 0, truncated.length);
+		mStorage.write(NAME + ".journal", truncated);
+		checkMoveAfterRestore(mStorage, 1);
+	}
+	
+	// Restores the puzzle, checks that numMoves moves were recovered, then
+	// makes another move, saves and checks that it survives a second restore
+	private void checkMoveAfterRestore(PuzzleStorage storage, int numMoves)
+	{
+		Tetravex restored = Tetravex.restorePuzzle(NAME, storage);
+		assertNotNull(restored);
+		assertEquals(numMoves, countTiles(restored));
+		
+		placeSolutionTile(restored, 2);
+		restored.savePuzzleAsync(NAME, storage);
+		
+		Tetravex again = Tetravex.restorePuzzle(NAME, storage);
+		assertNotNull(again);
+		assertEquals(numMoves + 1, countTiles(again));
+		assertBoardsEqual(restored, again);
+	}
+	
+	// Places the solution's tile on the given square, in row major order
+	private static void placeSolutionTile(Tetravex puzzle, int square)
+	{
+		int x = square % SIZE;
+		int y = square / SIZE;
+		assertTrue(puzzle.placeTileCode(puzzle.getSolutionTileCode(x, y), x, y) != Tetravex.INVALID_MOVE);
+	}
+	
+	private static int countTiles(Tetravex puzzle)
+	{
+		int numTiles = 0;
+		for (int x=0; x<SIZE; x++)
+		{
+			for (int y=0; y<SIZE; y++)
+			{
+				if (puzzle.getBoardTileCode(x, y) != TileCode.EMPTY) numTiles++;
+			}
+		}
+		return numTiles;
+	}
+	
+	private static void assertBoardsEqual(Tetravex expected, Tetravex actual)
+	{
+		for (int x=0; x<SIZE; x++)
+		{
+			for (int y=0; y<SIZE; y++)
+			{
+				assertEquals("Square " + x + "," + y, expected.getBoardTileCode(x, y), actual.getBoardTileCode(x, y));
+			}
+		}
+	}
+}
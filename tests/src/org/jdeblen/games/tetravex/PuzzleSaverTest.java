@@ -0,0 +1,105 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+// Order of the writes PuzzleSaver makes, with writes queued while the
+// saver's thread is busy
+public class PuzzleSaverTest extends TestCase {
+	// Records writes, holding up the first one until released
+	private static class RecordingStorage implements PuzzleStorage {
+		final CountDownLatch mStarted = new CountDownLatch(1);
+		final CountDownLatch mRelease = new CountDownLatch(1);
+		final List<String> mWrites = new ArrayList<String>();
+		
+		@Override
+		public byte [] read(String fileName)
+		{
+			return null;
+		}
+		
+		@Override
+		public boolean write(String fileName, byte [] data)
+		{
+			return record("write " + fileName + " " + data.length);
+		}
+		
+		@Override
+		public boolean append(String fileName, byte [] data)
+		{
+			return record("append " + fileName + " " + data.length);
+		}
+		
+		private boolean record(String write)
+		{
+			mStarted.countDown();
+			try {
+				mRelease.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+			synchronized (mWrites) {
+				mWrites.add(write);
+			}
+			return true;
+		}
+	}
+	
+	public void testCheckpointAfterQueuedAppend() throws InterruptedException
+	{
+		RecordingStorage storage = new RecordingStorage();
+		PuzzleSaver.saveAsync(storage, "busy", new byte[1]);
+		storage.mStarted.await();
+		
+		// A journal append, then a checkpoint, while the saver is busy
+		PuzzleSaver.appendAsync(storage, "test.journal", new byte[4]);
+		PuzzleSaver.saveAsync(storage, "test.puzzle", new byte[100]);
+		PuzzleSaver.saveAsync(storage, "test.journal", new byte[12]);
+		storage.mRelease.countDown();
+		PuzzleSaver.waitForSaves();
+		
+		assertEquals(4, storage.mWrites.size());
+		assertEquals("append test.journal 4", storage.mWrites.get(1));
+		assertEquals("write test.puzzle 100", storage.mWrites.get(2));
+		assertEquals("write test.journal 12", storage.mWrites.get(3));
+	}
+	
+	public void testCoalescedAppends() throws InterruptedException
+	{
+		RecordingStorage storage = new RecordingStorage();
+		PuzzleSaver.saveAsync(storage, "busy", new byte[1]);
+		storage.mStarted.await();
+		
+		PuzzleSaver.saveAsync(storage, "test.journal", new byte[12]);
+		PuzzleSaver.appendAsync(storage, "test.journal", new byte[4]);
+		PuzzleSaver.appendAsync(storage, "test.journal", new byte[8]);
+		storage.mRelease.countDown();
+		PuzzleSaver.waitForSaves();
+		
+		assertEquals(2, storage.mWrites.size());
+		assertEquals("write test.journal 24", storage.mWrites.get(1));
+	}
+}
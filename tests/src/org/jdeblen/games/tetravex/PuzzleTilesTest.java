@@ -0,0 +1,121 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+// Moves made the way the controller makes them while tiles are dragged,
+// checking which of them undo treats as one move
+public class PuzzleTilesTest extends TestCase {
+	private static final int SIZE = 3;
+	private static final int MAX_VALUES = 6;
+	
+	private Tetravex mPuzzle;
+	private PuzzleTiles mTiles;
+	
+	@Override
+	protected void setUp()
+	{
+		mPuzzle = new Tetravex(SIZE, MAX_VALUES);
+		mTiles = new PuzzleTiles(mPuzzle, new Random(1));
+	}
+	
+	public void testDragBetweenSquaresIsOneMove()
+	{
+		int tileNum = placeSolutionTile(0, 0);
+		
+		// Dragged to another square, without leaving the grid
+		mTiles.removeTile(0, 0);
+		assertEquals(-1, mTiles.getTileLocation(tileNum));
+		assertTrue(mTiles.placeTile(tileNum, 1, 1) != Tetravex.INVALID_MOVE);
+		assertEquals(1*SIZE + 1, mTiles.getTileLocation(tileNum));
+		
+		// Undo takes the tile straight back
+		mPuzzle.undo();
+		assertEquals(TileCode.EMPTY, mPuzzle.getBoardTileCode(1, 1));
+		assertEquals(mPuzzle.getSolutionTileCode(0, 0), mPuzzle.getBoardTileCode(0, 0));
+	}
+	
+	public void testDropInScratchAreaEndsMove()
+	{
+		int tileNum = placeSolutionTile(0, 0);
+		
+		// Dragged to the scratch area, then later to another square
+		mTiles.removeTile(0, 0);
+		mTiles.dropTileOffGrid();
+		assertTrue(mTiles.placeTile(tileNum, 1, 1) != Tetravex.INVALID_MOVE);
+		
+		// Undo only takes back the last placement, leaving the tile in the
+		// scratch area, and then the drag off the grid
+		mPuzzle.undo();
+		assertEquals(TileCode.EMPTY, mPuzzle.getBoardTileCode(1, 1));
+		assertEquals(TileCode.EMPTY, mPuzzle.getBoardTileCode(0, 0));
+		mPuzzle.undo();
+		assertEquals(mPuzzle.getSolutionTileCode(0, 0), mPuzzle.getBoardTileCode(0, 0));
+	}
+	
+	public void testSyncSquareMovesTiles()
+	{
+		final int [] moved = new int[] {-1, -1};
+		PuzzleTiles.Listener listener = new PuzzleTiles.Listener() {
+			@Override
+			public void moveTileToGrid(int tileNum, int x, int y)
+			{
+				moved[0] = tileNum;
+			}
+			
+			@Override
+			public void moveTileOffGrid(int tileNum)
+			{
+				moved[1] = tileNum;
+			}
+		};
+		
+		int tileNum = placeSolutionTile(1, 2);
+		mPuzzle.undo();
+		mTiles.syncSquare(1*SIZE + 2, listener);
+		assertEquals(tileNum, moved[1]);
+		assertEquals(-1, mTiles.getTileLocation(tileNum));
+		
+		mPuzzle.redo();
+		mTiles.syncSquare(1*SIZE + 2, listener);
+		assertEquals(mPuzzle.getSolutionTileCode(1, 2), mTiles.getTileCode(moved[0]));
+		assertEquals(1*SIZE + 2, mTiles.getTileLocation(moved[0]));
+	}
+	
+	// Place the solution's tile for a square, returning its tile id
+	private int placeSolutionTile(int x, int y)
+	{
+		int code = mPuzzle.getSolutionTileCode(x, y);
+		for (int tileNum=0; tileNum<SIZE*SIZE; tileNum++)
+		{
+			if (mTiles.getTileCode(tileNum) == code && mTiles.getTileLocation(tileNum) == -1)
+			{
+				assertTrue(mTiles.placeTile(tileNum, x, y) != Tetravex.INVALID_MOVE);
+				return tileNum;
+			}
+		}
+		
+		fail("No tile for square " + x + "," + y);
+		return -1;
+	}
+}
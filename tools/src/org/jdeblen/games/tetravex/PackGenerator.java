@@ -0,0 +1,387 @@
+/********************************************************************
+ TVA (TetraVex for Android)
+ Copyright (C) 2014 John Eblen
+
+ This file is part of TVA.
+
+ TVA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ TVA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with TVA.  If not, see <http://www.gnu.org/licenses/>.
+*********************************************************************/
+package org.jdeblen.games.tetravex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Command line tool for generating puzzle packs (see PuzzlePack) on a plain
+// JVM. See README for how to build and run it.
+//
+// Worker threads, one per core by default, generate puzzles with the same
+// code as the game and keep those whose solution was verified to be
+// unique. The main thread takes them from a bounded queue, drops
+// duplicates and appends the rest to the pack. Memory use is thus bounded
+// by the queue, apart from the set of puzzles seen so far, which takes 16
+// bytes per puzzle.
+//
+// Two puzzles are duplicates if they have the same tiles, possibly all
+// rotated by the same quarter turns (which is the same puzzle on a rotated
+// board). Puzzles are identified by a 64 bit hash of their sorted tiles, so
+// there is a tiny chance of dropping a puzzle that is not a duplicate.
+//
+// Records are flushed every FLUSH_INTERVAL puzzles, and at every progress
+// report. If a run is interrupted, running the same command again keeps the
+// complete records already in the pack and carries on until it has the
+// requested number. Small sizes can run out of distinct puzzles, in which
+// case the duplicate count keeps growing; interrupt the run then.
+public class PackGenerator {
+	private static final int QUEUE_CAPACITY = 1024;
+	private static final int FLUSH_INTERVAL = 1000;
+	private static final long REPORT_INTERVAL_NANOS = 5000000000L;
+	private static final long DEFAULT_TIME_BUDGET_MILLIS = 2000;
+	
+	private final File mFile;
+	private final int mTarget;
+	private final PuzzlePack mPack;
+	private final int mNumThreads;
+	private final long mTimeBudgetMillis;
+	
+	private final BlockingQueue<byte []> mQueue = new ArrayBlockingQueue<byte []>(QUEUE_CAPACITY);
+	private final AtomicBoolean mDone = new AtomicBoolean();
+	private final AtomicLong mGenerated = new AtomicLong(); // By the workers
+	private final AtomicLong mRejected = new AtomicLong(); // Without a unique solution
+	private final LongHashSet mSeen = new LongHashSet();
+	private long mDuplicates;
+	
+	public PackGenerator(File file, int target, PuzzlePack pack, int numThreads, long timeBudgetMillis)
+	{
+		mFile = file;
+		mTarget = target;
+		mPack = pack;
+		mNumThreads = numThreads;
+		mTimeBudgetMillis = timeBudgetMillis;
+	}
+	
+	public static void main(String [] args)
+	{
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		int difficulty = DifficultyRater.ANY;
+		long timeBudgetMillis = DEFAULT_TIME_BUDGET_MILLIS;
+		
+		int numOptions = 0;
+		try {
+			while (numOptions+1 < args.length && args[numOptions].startsWith("-"))
+			{
+				String option = args[numOptions];
+				String value = args[numOptions+1];
+				if (option.equals("-threads")) numThreads = Integer.parseInt(value);
+				else if (option.equals("-difficulty")) difficulty = parseDifficulty(value);
+				else if (option.equals("-budget")) timeBudgetMillis = Long.parseLong(value);
+				else usage("Unknown option " + option);
+				numOptions += 2;
+			}
+			
+			if (args.length - numOptions != 4) usage(null);
+			File file = new File(args[numOptions]);
+			int target = Integer.parseInt(args[numOptions+1]);
+			int size = Integer.parseInt(args[numOptions+2]);
+			int maxValue = Integer.parseInt(args[numOptions+3]);
+			if (numThreads < 1 || target < 0) usage(null);
+			
+			PuzzlePack pack = new PuzzlePack(size, maxValue, difficulty);
+			new PackGenerator(file, target, pack, numThreads, timeBudgetMillis).run();
+		} catch (IllegalArgumentException e) {
+			// Includes NumberFormatException
+			usage(e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	private static int parseDifficulty(String value)
+	{
+		if (value.equals("any")) return DifficultyRater.ANY;
+		else if (value.equals("easy")) return DifficultyRater.EASY;
+		else if (value.equals("medium")) return DifficultyRater.MEDIUM;
+		else if (value.equals("hard")) return DifficultyRater.HARD;
+		else throw new IllegalArgumentException("Unknown difficulty " + value);
+	}
+	
+	private static void usage(String message)
+	{
+		if (message != null) System.err.println(message);
+		System.err.println("Usage: PackGenerator [-threads n] [-difficulty any|easy|medium|hard] [-budget millis]");
+		System.err.println("                     <pack file> <number of puzzles> <size> <number of edge values>");
+		System.exit(2);
+	}
+	
+	public void run() throws IOException
+	{
+		int numRecords = resume();
+		if (numRecords >= mTarget)
+		{
+			System.out.println(mFile + " already has " + numRecords + " puzzles");
+			return;
+		}
+		
+		Thread [] workers = new Thread[mNumThreads];
+		for (int i=0; i<mNumThreads; i++)
+		{
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					generatePuzzles();
+				}
+			}, "PackGenerator-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		
+		FileOutputStream fos = new FileOutputStream(mFile, true);
+		BufferedOutputStream out = new BufferedOutputStream(fos, 64*1024);
+		long startTime = System.nanoTime();
+		long lastReport = startTime;
+		int numWritten = 0;
+		
+		try {
+			if (numRecords == 0 && mFile.length() == 0) out.write(mPack.getHeader());
+			
+			while (numRecords < mTarget)
+			{
+				// Report even while only duplicates arrive, which happens when
+				// a small size has run out of puzzles
+				long now = System.nanoTime();
+				if (now - lastReport >= REPORT_INTERVAL_NANOS)
+				{
+					out.flush();
+					report(numRecords, numWritten, now - startTime);
+					lastReport = now;
+				}
+				
+				byte [] record;
+				try {
+					record = mQueue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					break;
+				}
+				
+				if (record == null) continue;
+				if (!mSeen.add(getCanonicalHash(mPack.decode(record, 0))))
+				{
+					mDuplicates++;
+					continue;
+				}
+				
+				out.write(record);
+				numRecords++;
+				numWritten++;
+				if (numWritten % FLUSH_INTERVAL == 0) out.flush();
+			}
+			
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			mDone.set(true);
+			mQueue.clear();
+			out.close();
+		}
+		
+		report(numRecords, numWritten, System.nanoTime() - startTime);
+	}
+	
+	// Body of the worker threads
+	private void generatePuzzles()
+	{
+		while (!mDone.get())
+		{
+			Tetravex puzzle = new Tetravex(mPack.getSize(), mPack.getMaxValue(), mPack.getDifficulty(), mTimeBudgetMillis);
+			mGenerated.incrementAndGet();
+			if (!puzzle.hasUniqueSolution())
+			{
+				mRejected.incrementAndGet();
+				continue;
+			}
+			
+			byte [] record = new byte[mPack.getRecordLength()];
+			mPack.encode(puzzle, record, 0);
+			try {
+				mQueue.put(record);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	private void report(int numRecords, int numWritten, long elapsedNanos)
+	{
+		double seconds = elapsedNanos / 1e9;
+		double rate = numWritten / seconds;
+		System.out.printf("%d/%d puzzles, %.1f per second (%.2f per thread), %d duplicates, %d without a unique solution%n",
+				numRecords, mTarget, rate, rate / mNumThreads, mDuplicates, mRejected.get());
+	}
+	
+	// Check the header of an existing pack, drop any partly written record at
+	// its end and remember its puzzles. Returns the number of puzzles.
+	private int resume() throws IOException
+	{
+		if (!mFile.exists() || mFile.length() == 0) return 0;
+		
+		InputStream in = new BufferedInputStream(new FileInputStream(mFile));
+		int numRecords;
+		try {
+			byte [] header = new byte[PuzzlePack.HEADER_LENGTH];
+			if (!readFully(in, header)) throw new IOException(mFile + " is not a puzzle pack");
+			
+			PuzzlePack pack;
+			try {
+				pack = PuzzlePack.fromHeader(header);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(mFile + ": " + e.getMessage());
+			}
+			
+			if (pack.getSize() != mPack.getSize() || pack.getMaxValue() != mPack.getMaxValue() ||
+					pack.getDifficulty() != mPack.getDifficulty())
+			{
+				throw new IOException(mFile + " holds puzzles of size " + pack.getSize() + " with " +
+						pack.getMaxValue() + " edge values, difficulty " + pack.getDifficulty());
+			}
+			
+			numRecords = mPack.getNumRecords(mFile.length());
+			byte [] record = new byte[mPack.getRecordLength()];
+			for (int i=0; i<numRecords; i++)
+			{
+				if (!readFully(in, record)) throw new IOException(mFile + " was cut short while reading");
+				try {
+					mSeen.add(getCanonicalHash(mPack.decode(record, 0)));
+				} catch (IllegalArgumentException e) {
+					throw new IOException(mFile + ": puzzle " + i + " is corrupt");
+				}
+			}
+		} finally {
+			in.close();
+		}
+		
+		long length = PuzzlePack.HEADER_LENGTH + (long) numRecords * mPack.getRecordLength();
+		if (mFile.length() > length)
+		{
+			RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			try {
+				file.setLength(length);
+			} finally {
+				file.close();
+			}
+		}
+		
+		System.out.println("Resuming " + mFile + " with " + numRecords + " puzzles");
+		return numRecords;
+	}
+	
+	private static boolean readFully(InputStream in, byte [] data) throws IOException
+	{
+		int length = 0;
+		while (length < data.length)
+		{
+			int bytesRead = in.read(data, length, data.length - length);
+			if (bytesRead < 0) return false;
+			length += bytesRead;
+		}
+		return true;
+	}
+	
+	// Hash of a puzzle's tiles, the same for rotations of the puzzle
+	static long getCanonicalHash(Tetravex puzzle)
+	{
+		int size = puzzle.getSize();
+		int [] tiles = new int[size*size];
+		for (int i=0; i<tiles.length; i++) tiles[i] = puzzle.getSolutionTileCode(i / size, i % size);
+		
+		long hash = Long.MAX_VALUE;
+		for (int rotation=0; rotation<4; rotation++)
+		{
+			Arrays.sort(tiles);
+			hash = Math.min(hash, hashTiles(tiles));
+			
+			// Turn each tile a quarter clockwise: left goes to the top, top
+			// to the right, and so on
+			for (int i=0; i<tiles.length; i++)
+			{
+				int code = tiles[i];
+				tiles[i] = TileCode.make(TileCode.left(code), TileCode.bottom(code), TileCode.top(code), TileCode.right(code));
+			}
+		}
+		
+		return hash;
+	}
+	
+	private static long hashTiles(int [] tiles)
+	{
+		long hash = tiles.length;
+		for (int i=0; i<tiles.length; i++)
+		{
+			hash = (hash ^ tiles[i]) * 0x9e3779b97f4a7c15L;
+			hash ^= hash >>> 29;
+		}
+		return (hash == 0) ? 1 : hash;
+	}
+	
+	// Set of longs with open addressing, without boxing. 0 is not allowed.
+	private static class LongHashSet
+	{
+		private long [] mSlots = new long[1024];
+		private int mCount = 0;
+		
+		// Add a value, returning false if it was already there
+		boolean add(long value)
+		{
+			if (2*(mCount+1) > mSlots.length) grow();
+			if (!insert(mSlots, value)) return false;
+			mCount++;
+			return true;
+		}
+		
+		private void grow()
+		{
+			long [] slots = new long[2*mSlots.length];
+			for (long value : mSlots)
+			{
+				if (value != 0) insert(slots, value);
+			}
+			mSlots = slots;
+		}
+		
+		private static boolean insert(long [] slots, long value)
+		{
+			int mask = slots.length - 1;
+			int slot = (int) (value ^ (value >>> 32)) & mask;
+			while (slots[slot] != 0)
+			{
+				if (slots[slot] == value) return false;
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = value;
+			return true;
+		}
+	}
+}